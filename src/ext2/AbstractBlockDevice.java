@@ -0,0 +1,45 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Common bookkeeping of the block device implementations: the volume size and argument checks
+public abstract class AbstractBlockDevice implements BlockDevice {
+
+    private final int BLOCK_COUNT;
+
+    protected AbstractBlockDevice(int blockCount) {
+        BLOCK_COUNT = blockCount;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return BLOCK_COUNT;
+    }
+
+    protected void checkBlocks(int first, int count, ByteBuffer buffer) {
+        if (first < 0 || first + count > BLOCK_COUNT) {
+            throw new IllegalArgumentException(String.format("Blocks %d to %d are out of range (0 - %d)",
+                    first,
+                    first + count - 1,
+                    BLOCK_COUNT - 1));
+        }
+        if (buffer.remaining() != count * BLOCK_SIZE) {
+            throw new IllegalArgumentException(String.format("The buffer has %d bytes remaining, it must be a multiple of %d",
+                    buffer.remaining(),
+                    BLOCK_SIZE));
+        }
+    }
+
+    protected void checkBlock(int block, ByteBuffer buffer) {
+        if (block < 0 || block >= BLOCK_COUNT) {
+            throw new IllegalArgumentException(String.format("Block %d is out of range (0 - %d)", block, BLOCK_COUNT - 1));
+        }
+        if (buffer.remaining() < BLOCK_SIZE) {
+            throw new IllegalArgumentException(String.format("The buffer has %d bytes remaining, %d are needed",
+                    buffer.remaining(),
+                    BLOCK_SIZE));
+        }
+    }
+}
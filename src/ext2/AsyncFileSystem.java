@@ -0,0 +1,171 @@
+package ext2;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+import static java.lang.Math.toIntExact;
+
+// Runs the operations of a FileSystem on an executor and returns a CompletableFuture for each one, so a few
+// threads can have many operations in flight. Paths are always taken from the root directory (the facade
+// has no current directory). readFile() splits the file in pieces of PIPELINE_BLOCKS blocks that are read
+// at the same time instead of one after the other
+public class AsyncFileSystem implements AutoCloseable {
+
+    public static final int DEFAULT_THREADS = 8;
+    // Blocks read by each task of readFile()
+    public static final int PIPELINE_BLOCKS = 4;
+
+    private final FileSystem FILE_SYSTEM;
+    private final ExecutorService EXECUTOR;
+    // Whether close() shuts the executor down (only when it was created here)
+    private final boolean OWNS_EXECUTOR;
+
+    // Runs the operations on 'executor', which is left running by close()
+    public AsyncFileSystem(FileSystem fileSystem, ExecutorService executor) {
+        this(fileSystem, executor, false);
+    }
+
+    // Runs the operations on a pool of 'threads' daemon threads of its own
+    public AsyncFileSystem(FileSystem fileSystem, int threads) {
+        this(fileSystem, newPool(threads), true);
+    }
+
+    public AsyncFileSystem(FileSystem fileSystem) {
+        this(fileSystem, DEFAULT_THREADS);
+    }
+
+    private AsyncFileSystem(FileSystem fileSystem, ExecutorService executor, boolean ownsExecutor) {
+        FILE_SYSTEM = fileSystem;
+        EXECUTOR = executor;
+        OWNS_EXECUTOR = ownsExecutor;
+    }
+
+    private static ExecutorService newPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "ext2-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Content of the file at 'path' (following a symbolic link), null if it doesn't exist. The access time is
+    // updated first, then the pieces of the file are read in parallel. A write that runs at the same time
+    // can be seen by some pieces and not by others
+    public CompletableFuture<byte[]> readFile(String path) {
+        return inDirectory(path, FILE_SYSTEM::openFile).thenCompose(in -> {
+            if (in == null) return CompletableFuture.completedFuture(null);
+
+            int inode = in.getInode().getInode();
+            byte content[] = new byte[toIntExact(in.getSize())];
+            ArrayList<CompletableFuture<Integer>> reads = new ArrayList<>();
+            for (int offset = 0; offset < content.length; offset += PIPELINE_BLOCKS * BLOCK_SIZE) {
+                ByteBuffer piece = ByteBuffer.wrap(content, offset, Math.min(PIPELINE_BLOCKS * BLOCK_SIZE, content.length - offset));
+                long position = offset;
+                reads.add(call(() -> FILE_SYSTEM.read(inode, position, piece)));
+            }
+            return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(done -> content);
+        });
+    }
+
+    // Creates the file at 'path' with 'text' as its content
+    public CompletableFuture<Void> writeFile(String path, String text) {
+        return inDirectory(path, name -> {
+            FILE_SYSTEM.writeFile(name, text);
+            return null;
+        });
+    }
+
+    // Adds 'text' at the end of the file at 'path'. Completes with false if the file doesn't exist
+    public CompletableFuture<Boolean> append(String path, String text) {
+        return inDirectory(path, name -> FILE_SYSTEM.append(name, text));
+    }
+
+    // Creates the directory at 'path'
+    public CompletableFuture<Void> writeDirectory(String path) {
+        return inDirectory(path, name -> {
+            FILE_SYSTEM.writeDirectory(name);
+            return null;
+        });
+    }
+
+    // The dir_entry at 'path', null if it doesn't exist
+    public CompletableFuture<DirectoryEntry> findEntry(String path) {
+        return call(() -> FILE_SYSTEM.findEntry(toAbsolute(path)));
+    }
+
+    // Removes the file, link or empty directory at 'path'. Completes with false if it doesn't exist
+    public CompletableFuture<Boolean> removeEntry(String path) {
+        return inDirectory(path, FILE_SYSTEM::removeEntry);
+    }
+
+    public FileSystem getFileSystem() {
+        return FILE_SYSTEM;
+    }
+
+    // Stops the executor if it belongs to this object. The operations already submitted still run
+    @Override
+    public void close() {
+        if (OWNS_EXECUTOR) EXECUTOR.shutdown();
+    }
+
+    // An operation run on the executor
+    private interface Task<T> {
+        T run() throws IOException;
+    }
+
+    // An operation on the last component of a path, run from the directory that holds it
+    private interface NameTask<T> {
+        T run(String name) throws IOException;
+    }
+
+    // Runs 'task' on the executor. Its exceptions (IOException included) complete the future
+    private <T> CompletableFuture<T> call(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    future.complete(task.run());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Runs 'task' with the directory of 'path' as the current directory of the executor thread (each thread
+    // of the file system has its own), passing it the last component of the path. The thread gets its previous
+    // directory back afterwards: with an executor that runs tasks on the caller's thread, that's the caller's
+    private <T> CompletableFuture<T> inDirectory(String path, NameTask<T> task) {
+        return call(() -> {
+            String absolute = toAbsolute(path);
+            Directory directory = FILE_SYSTEM.resolveDirectory(FilenameUtils.getFullPath(absolute));
+            if (directory == null) {
+                throw new IllegalArgumentException("The system could not find the path specified");
+            }
+            int previous = FILE_SYSTEM.getCurrentDirectoryInode();
+            FILE_SYSTEM.setCurrentDirectory(directory);
+            try {
+                return task.run(FilenameUtils.getName(absolute));
+            } finally {
+                FILE_SYSTEM.setCurrentDirectory(previous);
+            }
+        });
+    }
+
+    private static String toAbsolute(String path) {
+        return path.startsWith("/") ? path : "/" + path;
+    }
+}
@@ -10,117 +10,54 @@ public final class BitUtils {
 
     // Returns the index of the first cleared bit that is found
     public static int nextClearBit(byte[] array) {
-        int index = 1;
         for (int i = 0; i < array.length; i++) {
-            // Loop through every byte
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                if (((b >>> j) & 1) == 0) return index;
-                index++;
-            }
+            // Skip bytes that are full, then find the first 0 bit (most significant first)
+            int b = array[i] & 0xFF;
+            if (b != 0xFF) return i * 8 + Integer.numberOfLeadingZeros(~b & 0xFF) - 24 + 1;
         }
         return 0;
     }
 
     // Returns the index of the first set bit that is found
     public static int nextSetBit(byte[] array) {
-        int index = 1;
         for (int i = 0; i < array.length; i++) {
-            // Loop through every byte
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                if (((b >>> j) & 1) != 0) return index;
-                index++;
-            }
+            // Skip empty bytes, then find the first 1 bit (most significant first)
+            int b = array[i] & 0xFF;
+            if (b != 0) return i * 8 + Integer.numberOfLeadingZeros(b) - 24 + 1;
         }
         return 0;
     }
 
     // Returns the index of the first cleared bit that is found and sets that same bit to 1
     public static int nextClearBitThenSet(byte[] array) {
-        int index = 1;
-        for (int i = 0; i < array.length; i++) {
-            // Loop through every byte
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                if (((b >>> j) & 1) == 0) {
-                    b |= (1 << j); // set bit j to 1
-                    array[i] = b;
-                    return index;
-                }
-                index++;
-            }
-        }
-        return 0;
+        int index = nextClearBit(array);
+        if (index != 0) setBit(index, array);
+        return index;
     }
 
     // Returns the index of the first set bit that is found and clears that same bit to 0
     public static int nextSetBitThenClear(byte[] array) {
-        int index = 1;
-        for (int i = 0; i < array.length; i++) {
-            // Loop through every byte
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                if (((b >>> j) & 1) != 0) {
-                    b &= ~(1 << j); // set bit j to 0
-                    array[i] = b;
-                    return index;
-                }
-                index++;
-            }
-        }
-        return 0;
+        int index = nextSetBit(array);
+        if (index != 0) clearBit(index, array);
+        return index;
     }
 
     // Sets bit at index 'bitIndex' to 1
     public static void setBit(int bitIndex, byte[] array) {
-        int index = 1;
-        for (int i = 0; i < array.length; i++) {
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                // Set bit
-                if (index == bitIndex) {
-                    b |= (1 << j); // set bit j to 1
-                    array[i] = b;
-                    return;
-                }
-                index++;
-            }
-        }
+        int bit = bitIndex - 1;
+        array[bit >>> 3] |= (1 << (7 - (bit & 7)));
     }
 
     // Clears bit at index 'bitIndex' to 0
     public static void clearBit(int bitIndex, byte[] array) {
-        int index = 1;
-        for (int i = 0; i < array.length; i++) {
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                // Set bit
-                if (index == bitIndex) {
-                    b &= ~(1 << j); // set bit j to 0
-                    array[i] = b;
-                    return;
-                }
-                index++;
-            }
-        }
+        int bit = bitIndex - 1;
+        array[bit >>> 3] &= ~(1 << (7 - (bit & 7)));
     }
 
     // Toggles bit at index 'bitIndex'
     public static void toggleBit(int bitIndex, byte[] array) {
-        int index = 1;
-        for (int i = 0; i < array.length; i++) {
-            byte b = array[i];
-            for (int j = 7; j >= 0; j--) {
-                if (index == bitIndex) {
-                    // Toggle bit
-                    b ^= (1 << j);
-                    array[i] = b;
-                    return;
-                }
-                index++;
-            }
-        }
+        int bit = bitIndex - 1;
+        array[bit >>> 3] ^= (1 << (7 - (bit & 7)));
     }
 
     // Returns a list containing every index that corresponds to a bit set or unset depending on the value of 'set'
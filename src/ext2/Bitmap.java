@@ -0,0 +1,243 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+// Bitmap stored in 64 bit words. Indexes start at 1 like in BitUtils, and bit 1 is the most
+// significant bit of the first byte, so the words map 1:1 to the on-disk byte layout (big endian).
+// A second layer keeps one bit per word telling if that word is full, which lets the search for a
+// clear bit jump over 4096 used bits at a time. Changes are tracked per block (FileSystem.BLOCK_SIZE
+// bytes of the on-disk bitmap, or a smaller piece when the bitmap is split between block groups) so only
+// the blocks that changed have to be written back
+public class Bitmap {
+
+    // Bits stored in one block of the on-disk bitmap
+    private final int BITS_PER_BLOCK;
+
+    private final int SIZE;
+    private final long words[];
+    // Bit 'w' is set when words[w] has all of its bits set
+    private final long fullWords[];
+    // Blocks of the on-disk bitmap that changed since the last time they were written
+    private final BitSet dirtyBlocks = new BitSet();
+
+    // Creates an empty bitmap that can hold 'size' bits
+    public Bitmap(int size) {
+        this(size, FileSystem.BLOCK_SIZE * 8);
+    }
+
+    // Same as Bitmap(size), for an on-disk bitmap stored 'blockBits' bits per block (a multiple of 64)
+    public Bitmap(int size, int blockBits) {
+        SIZE = size;
+        BITS_PER_BLOCK = blockBits;
+        words = new long[(size + 63) >>> 6];
+        fullWords = new long[(words.length + 63) >>> 6];
+
+        // Bits past the end of the bitmap are kept set so they are never handed out
+        for (int word = words.length; word < fullWords.length * 64; word++) {
+            fullWords[word >>> 6] |= mask(word);
+        }
+        clear();
+    }
+
+    public static Bitmap fromByteArray(byte array[]) {
+        Bitmap bitmap = new Bitmap(array.length * 8);
+        bitmap.load(array);
+        return bitmap;
+    }
+
+    // Clears every bit
+    public void clear() {
+        for (int word = 0; word < words.length; word++) {
+            words[word] = paddingMask(word);
+            updateSummary(word);
+        }
+        dirtyBlocks.set(0, getBlockCount());
+    }
+
+    // Replaces the content of the bitmap with the bits in array[] (on-disk layout)
+    public void load(byte array[]) {
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        for (int word = 0; word < words.length; word++) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                int b = buffer.hasRemaining() ? buffer.get() & 0xFF : 0;
+                value = (value << 8) | b;
+            }
+            words[word] = value | paddingMask(word);
+            updateSummary(word);
+        }
+        // Same content as the disk
+        dirtyBlocks.clear();
+    }
+
+    // Copies the bitmap into array[] using the on-disk layout
+    public void toByteArray(byte array[]) {
+        toByteArray(array, 0, array.length);
+    }
+
+    // Copies 'len' bytes of the bitmap, starting at byte 'from', into array[0..len)
+    public void toByteArray(byte array[], int from, int len) {
+        for (int i = 0; i < len; i++) {
+            int byteIndex = from + i;
+            if (byteIndex >= SIZE / 8) {
+                // Past the end of the bitmap
+                array[i] = 0;
+                continue;
+            }
+            long word = words[byteIndex >>> 3];
+            array[i] = (byte) (word >>> (56 - ((byteIndex & 7) << 3)));
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte array[] = new byte[SIZE / 8];
+        toByteArray(array);
+        return array;
+    }
+
+    public int getSize() {
+        return SIZE;
+    }
+
+    // Returns how many blocks the on-disk bitmap uses
+    public int getBlockCount() {
+        return (SIZE + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK;
+    }
+
+    // Returns the first block of the on-disk bitmap at or after 'fromBlock' that has to be written back, -1 if there is none
+    public int nextDirtyBlock(int fromBlock) {
+        return dirtyBlocks.nextSetBit(fromBlock);
+    }
+
+    public boolean isDirty() {
+        return !dirtyBlocks.isEmpty();
+    }
+
+    // Call after writing 'block' of the on-disk bitmap
+    public void clearDirty(int block) {
+        dirtyBlocks.clear(block);
+    }
+
+    public boolean isSet(int index) {
+        int bit = index - 1;
+        return (words[bit >>> 6] & mask(bit)) != 0;
+    }
+
+    // Sets bit at index 'index' to 1
+    public void setBit(int index) {
+        int bit = index - 1;
+        words[bit >>> 6] |= mask(bit);
+        updateSummary(bit >>> 6);
+        dirtyBlocks.set(bit / BITS_PER_BLOCK);
+    }
+
+    // Clears bit at index 'index' to 0
+    public void clearBit(int index) {
+        int bit = index - 1;
+        words[bit >>> 6] &= ~mask(bit);
+        updateSummary(bit >>> 6);
+        dirtyBlocks.set(bit / BITS_PER_BLOCK);
+    }
+
+    // Toggles bit at index 'index'
+    public void toggleBit(int index) {
+        int bit = index - 1;
+        words[bit >>> 6] ^= mask(bit);
+        updateSummary(bit >>> 6);
+        dirtyBlocks.set(bit / BITS_PER_BLOCK);
+    }
+
+    // Returns the index of the first cleared bit, 0 if every bit is set
+    public int nextClearBit() {
+        return nextClearBit(1);
+    }
+
+    // Returns the index of the first cleared bit at or after 'fromIndex', 0 if there is none
+    public int nextClearBit(int fromIndex) {
+        int bit = fromIndex - 1;
+        if (bit >= SIZE) return 0;
+
+        // Look in the word of 'fromIndex' first, ignoring the bits before it
+        int word = bit >>> 6;
+        long clear = ~words[word] & (-1L >>> (bit & 63));
+        if (clear == 0) {
+            // Jump to the next word that is not full
+            word = nextNotFullWord(word + 1);
+            if (word < 0) return 0;
+            clear = ~words[word];
+        }
+        return (word << 6) + Long.numberOfLeadingZeros(clear) + 1;
+    }
+
+    // Returns the index of the first set bit at or after 'fromIndex', 0 if there is none
+    public int nextSetBit(int fromIndex) {
+        int bit = fromIndex - 1;
+        if (bit >= SIZE) return 0;
+
+        int word = bit >>> 6;
+        long set = words[word] & (-1L >>> (bit & 63)) & ~paddingMask(word);
+        while (set == 0) {
+            if (++word == words.length) return 0;
+            set = words[word] & ~paddingMask(word);
+        }
+        return (word << 6) + Long.numberOfLeadingZeros(set) + 1;
+    }
+
+    // Returns the index of the first cleared bit and sets that same bit to 1, 0 if every bit is set
+    public int nextClearBitThenSet() {
+        int index = nextClearBit(1);
+        if (index != 0) setBit(index);
+        return index;
+    }
+
+    // Returns a list with the index of every set bit
+    public ArrayList<Integer> findAllSetBits() {
+        ArrayList<Integer> list = new ArrayList<>();
+        for (int index = nextSetBit(1); index != 0; index = nextSetBit(index + 1)) {
+            list.add(index);
+        }
+        return list;
+    }
+
+    // Returns how many bits are set
+    public int cardinality() {
+        int count = 0;
+        for (int word = 0; word < words.length; word++) {
+            count += Long.bitCount(words[word] & ~paddingMask(word));
+        }
+        return count;
+    }
+
+    // Returns the first word at or after 'fromWord' that has at least one cleared bit, -1 if there is none
+    private int nextNotFullWord(int fromWord) {
+        if (fromWord >= words.length) return -1;
+        int summary = fromWord >>> 6;
+        long notFull = ~fullWords[summary] & (-1L >>> (fromWord & 63));
+        while (notFull == 0) {
+            if (++summary == fullWords.length) return -1;
+            notFull = ~fullWords[summary];
+        }
+        return (summary << 6) + Long.numberOfLeadingZeros(notFull);
+    }
+
+    private void updateSummary(int word) {
+        if (words[word] == -1L) {
+            fullWords[word >>> 6] |= mask(word);
+        } else {
+            fullWords[word >>> 6] &= ~mask(word);
+        }
+    }
+
+    // Bits of 'word' that are past the end of the bitmap
+    private long paddingMask(int word) {
+        int validBits = SIZE - (word << 6);
+        return validBits >= 64 ? 0 : -1L >>> validBits;
+    }
+
+    // Mask of the 0-based 'bit' inside its word (most significant bit first)
+    private static long mask(int bit) {
+        return 1L << (63 - (bit & 63));
+    }
+}
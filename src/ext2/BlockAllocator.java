@@ -0,0 +1,209 @@
+package ext2;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Hands out data blocks in contiguous runs. The free space is indexed as extents (by first block
+// and by length) so a request for N blocks can be served with as few runs as possible instead of
+// taking the first N clear bits one at a time. Every change is applied to the data bitmap too, the
+// index can always be rebuilt from it
+public class BlockAllocator {
+
+    public enum Policy {
+        // Use the smallest free extent that can hold the whole request
+        BEST_FIT,
+        // Use the first free extent, starting where the last allocation ended, that can hold the whole request
+        NEXT_FIT
+    }
+
+    private final Bitmap BITMAP;
+    // Blocks 1 to BLOCK_COUNT (both included) can be handed out
+    private final int BLOCK_COUNT;
+
+    // Free extents: first block -> length
+    private final TreeMap<Integer, Integer> freeByStart = new TreeMap<>();
+    // Free extents: length -> first blocks of the extents with that length
+    private final TreeMap<Integer, TreeSet<Integer>> freeByLength = new TreeMap<>();
+
+    private Policy policy = Policy.BEST_FIT;
+    private int nextFitCursor = 1;
+    private int freeBlocks;
+
+    public BlockAllocator(Bitmap bitmap, int blockCount) {
+        BITMAP = bitmap;
+        BLOCK_COUNT = Math.min(blockCount, bitmap.getSize());
+    }
+
+    // Builds the free extent index from the bitmap. Must be called every time the bitmap is loaded
+    public void rebuild() {
+        freeByStart.clear();
+        freeByLength.clear();
+        freeBlocks = 0;
+        nextFitCursor = 1;
+
+        int start = BITMAP.nextClearBit(1);
+        while (start != 0 && start <= BLOCK_COUNT) {
+            int end = BITMAP.nextSetBit(start);
+            if (end == 0 || end > BLOCK_COUNT) end = BLOCK_COUNT + 1;
+            addFree(start, end - start);
+            start = BITMAP.nextClearBit(end);
+        }
+    }
+
+    // Allocates 'count' blocks and returns them as runs of consecutive blocks, in the order they should be used
+    public ArrayList<Extent> allocate(int count) {
+        if (count > freeBlocks) {
+            throw new IllegalArgumentException(String.format("There is not enough space on the disk (%d blocks needed, %d free)",
+                    count,
+                    freeBlocks));
+        }
+
+        ArrayList<Extent> extents = new ArrayList<>();
+        int remaining = count;
+        while (remaining > 0) {
+            int start = findExtent(remaining);
+            int taken = Math.min(freeByStart.get(start), remaining);
+            extents.add(take(start, taken));
+            remaining -= taken;
+        }
+        return extents;
+    }
+
+    // Same as allocate(count), but if the blocks fit in a single free extent between blocks 'first' and 'last'
+    // (both included) they are taken from there: starting at 'goal' if it is free, else from the closest free
+    // extent after it (wrapping around to 'first'). Used to keep blocks close to the other blocks they go with
+    public ArrayList<Extent> allocate(int count, int goal, int first, int last) {
+        if (goal < first || goal > last) goal = first;
+        int start = findNear(count, goal, first, last);
+        if (start == 0) return allocate(count);
+
+        ArrayList<Extent> extents = new ArrayList<>();
+        extents.add(take(start, count));
+        return extents;
+    }
+
+    // Allocates a single block
+    public int allocate() {
+        return allocate(1).get(0).getStart();
+    }
+
+    // Gives a block back, merging it with the free extents next to it
+    public void free(int block) {
+        if (block < 1 || block > BLOCK_COUNT || !BITMAP.isSet(block)) return;
+        BITMAP.clearBit(block);
+
+        int start = block;
+        int length = 1;
+        Map.Entry<Integer, Integer> previous = freeByStart.lowerEntry(block);
+        if (previous != null && previous.getKey() + previous.getValue() == block) {
+            start = previous.getKey();
+            length += previous.getValue();
+            removeFree(previous.getKey(), previous.getValue());
+        }
+        Integer nextLength = freeByStart.get(block + 1);
+        if (nextLength != null) {
+            length += nextLength;
+            removeFree(block + 1, nextLength);
+        }
+        addFree(start, length);
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    // Returns how many free blocks there are between 'first' and 'last' (both included)
+    public int getFreeBlocks(int first, int last) {
+        int count = 0;
+        Map.Entry<Integer, Integer> before = freeByStart.lowerEntry(first);
+        if (before != null) {
+            count += Math.max(0, Math.min(before.getKey() + before.getValue() - 1, last) - first + 1);
+        }
+        for (Map.Entry<Integer, Integer> extent : freeByStart.subMap(first, true, last, true).entrySet()) {
+            count += Math.min(extent.getValue(), last - extent.getKey() + 1);
+        }
+        return count;
+    }
+
+    // Returns how many separate free extents there are (1 means the free space is not fragmented at all)
+    public int getFreeExtents() {
+        return freeByStart.size();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    // Returns the first block of the free extent that should serve a request of 'count' blocks
+    private int findExtent(int count) {
+        if (policy == Policy.NEXT_FIT) {
+            for (Map.Entry<Integer, Integer> extent : freeByStart.tailMap(nextFitCursor).entrySet()) {
+                if (extent.getValue() >= count) return extent.getKey();
+            }
+            for (Map.Entry<Integer, Integer> extent : freeByStart.headMap(nextFitCursor).entrySet()) {
+                if (extent.getValue() >= count) return extent.getKey();
+            }
+        } else {
+            Map.Entry<Integer, TreeSet<Integer>> bestFit = freeByLength.ceilingEntry(count);
+            if (bestFit != null) return bestFit.getValue().first();
+        }
+        // No extent can hold the whole request: take the largest one and keep going with the rest
+        return freeByLength.lastEntry().getValue().first();
+    }
+
+    // Returns where 'count' blocks between 'first' and 'last' can be taken from a single free extent, at 'goal' or
+    // as close after it as possible. 0 if they can't
+    private int findNear(int count, int goal, int first, int last) {
+        Map.Entry<Integer, Integer> containing = freeByStart.floorEntry(goal);
+        if (containing != null && containing.getKey() + containing.getValue() >= goal + count && goal + count - 1 <= last) {
+            return goal;
+        }
+        for (Map.Entry<Integer, Integer> extent : freeByStart.subMap(goal, false, last, true).entrySet()) {
+            if (extent.getValue() >= count && extent.getKey() + count - 1 <= last) return extent.getKey();
+        }
+        for (Map.Entry<Integer, Integer> extent : freeByStart.subMap(first, true, goal, false).entrySet()) {
+            if (extent.getValue() >= count && extent.getKey() + count - 1 <= last) return extent.getKey();
+        }
+        return 0;
+    }
+
+    // Takes 'count' blocks starting at block 'start', which must be free along with the ones after it
+    private Extent take(int start, int count) {
+        Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(start);
+        int extentStart = extent.getKey();
+        int extentEnd = extentStart + extent.getValue();
+
+        removeFree(extentStart, extent.getValue());
+        if (start > extentStart) {
+            addFree(extentStart, start - extentStart);
+        }
+        if (extentEnd > start + count) {
+            addFree(start + count, extentEnd - start - count);
+        }
+        for (int block = start; block < start + count; block++) {
+            BITMAP.setBit(block);
+        }
+        nextFitCursor = start + count;
+        return new Extent(start, count);
+    }
+
+    private void addFree(int start, int length) {
+        freeByStart.put(start, length);
+        freeByLength.computeIfAbsent(length, k -> new TreeSet<>()).add(start);
+        freeBlocks += length;
+    }
+
+    private void removeFree(int start, int length) {
+        freeByStart.remove(start);
+        TreeSet<Integer> starts = freeByLength.get(length);
+        starts.remove(start);
+        if (starts.isEmpty()) freeByLength.remove(length);
+        freeBlocks -= length;
+    }
+}
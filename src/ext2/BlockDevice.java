@@ -0,0 +1,31 @@
+package ext2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A volume seen as an array of fixed size blocks (FileSystem.BLOCK_SIZE bytes each), numbered from 0
+public interface BlockDevice extends Closeable {
+
+    // Returns how many blocks the volume has
+    int getBlockCount();
+
+    // Reads block 'block' into 'dst' starting at its position. 'dst' must have at least
+    // FileSystem.BLOCK_SIZE bytes remaining and its position is advanced by that amount
+    void readBlock(int block, ByteBuffer dst) throws IOException;
+
+    // Writes FileSystem.BLOCK_SIZE bytes from 'src' (starting at its position) to block 'block'
+    void writeBlock(int block, ByteBuffer src) throws IOException;
+
+    // Reads consecutive blocks, starting at block 'first', until 'dst' is full. dst.remaining() must be a
+    // multiple of FileSystem.BLOCK_SIZE. Devices that can do it in a single I/O should override this
+    default void readBlocks(int first, ByteBuffer dst) throws IOException {
+        int block = first;
+        while (dst.hasRemaining()) {
+            readBlock(block++, dst);
+        }
+    }
+
+    // Makes sure every block written so far reaches the underlying storage
+    void flush() throws IOException;
+}
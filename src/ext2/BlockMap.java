@@ -0,0 +1,47 @@
+package ext2;
+
+import java.io.IOException;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+// Maps the blocks of a file (0, 1, 2...) to data blocks. Files use block pointers (IndirectBlockMap) unless
+// their inode was created with extents (ExtentMap). Changes are kept in memory (and in the inode) until
+// flush() is called; the caller still has to write the inode. Get one with BlockMap.of()
+public abstract class BlockMap {
+
+    // Returns the map that matches the format of 'inode'
+    public static BlockMap of(FileSystem fileSystem, Inode inode) {
+        return inode.usesExtents() ? new ExtentMap(fileSystem, inode) : new IndirectBlockMap(fileSystem, inode);
+    }
+
+    // Returns the data block of block 'index' of the file, 0 if it doesn't have one
+    public abstract int get(long index) throws IOException;
+
+    // Makes block 'index' of the file point to data block 'block'. Any block the map itself needs to hold
+    // the new reference is taken from 'newBlock'
+    public abstract void set(long index, int block, IntSupplier newBlock) throws IOException;
+
+    // Writes the blocks of the map that changed
+    public abstract void flush() throws IOException;
+
+    // Passes every block of the file to 'free': the data blocks and the blocks of the map that reference them
+    public abstract void free(IntConsumer free) throws IOException;
+
+    // Returns how many blocks a file can have with this map
+    public abstract long getMaxBlocks();
+
+    // Returns how many blocks the map itself needs for a file of 'blockCount' blocks written in one go
+    public abstract long countMapBlocks(long blockCount) throws IOException;
+
+    // Returns how many blocks, from block 'index' of the file and up to 'max', are stored in consecutive data
+    // blocks (so they can be read with a single I/O). 0 if block 'index' doesn't have a data block
+    public int getRun(long index, int max) throws IOException {
+        int first = get(index);
+        if (first == 0) return 0;
+        int run = 1;
+        while (run < max && get(index + run) == first + run) {
+            run++;
+        }
+        return run;
+    }
+}
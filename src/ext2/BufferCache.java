@@ -0,0 +1,242 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Block device that keeps the most recently used blocks of another device in memory. The blocks are
+// evicted in LRU order once the memory budget is used up. In WRITE_THROUGH mode every write also goes
+// to the device right away; in WRITE_BACK mode the written blocks stay dirty in memory until they are
+// evicted or sync() (or flush()) is called.
+//
+// The cache can be shared by many threads. A miss of readBlock() reads the device without holding the
+// lock of the cache, so threads that miss don't wait for each other's I/O
+public class BufferCache implements BlockDevice {
+
+    public enum Mode {WRITE_THROUGH, WRITE_BACK}
+
+    // 8 MB
+    public static final int DEFAULT_SIZE = 2048 * BLOCK_SIZE;
+
+    private final BlockDevice DEVICE;
+    private final int CAPACITY;
+    private Mode mode;
+
+    // Block number -> contents, iterated from the least to the most recently used
+    private final LinkedHashMap<Integer, byte[]> blocks;
+    // Blocks that have to be written back to the device, sorted so sync() writes them in disk order
+    private final TreeMap<Integer, byte[]> dirtyBlocks = new TreeMap<>();
+
+    // Incremented by every write, so a miss knows whether the block may have changed while it read the device
+    private long writes;
+
+    private long hits;
+    private long misses;
+
+    // Caches up to 'size' bytes (rounded down to whole blocks, at least one) of 'device'
+    public BufferCache(BlockDevice device, int size, Mode mode) {
+        DEVICE = device;
+        CAPACITY = Math.max(1, size / BLOCK_SIZE);
+        this.mode = mode;
+        blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public BufferCache(BlockDevice device) {
+        this(device, DEFAULT_SIZE, Mode.WRITE_THROUGH);
+    }
+
+    @Override
+    public int getBlockCount() {
+        return DEVICE.getBlockCount();
+    }
+
+    @Override
+    public void readBlock(int block, ByteBuffer dst) throws IOException {
+        long stamp;
+        synchronized (this) {
+            byte data[] = blocks.get(block);
+            if (data != null) {
+                hits++;
+                dst.put(data);
+                return;
+            }
+            misses++;
+            stamp = writes;
+        }
+        byte data[] = new byte[BLOCK_SIZE];
+        DEVICE.readBlock(block, ByteBuffer.wrap(data));
+        synchronized (this) {
+            // Another thread may have read or written the block in the meantime: the cached copy wins, and
+            // after a write what was read may already be old, so it isn't cached
+            byte cached[] = blocks.get(block);
+            if (cached != null) {
+                data = cached;
+            } else if (writes == stamp) {
+                insert(block, data);
+            }
+            dst.put(data);
+        }
+    }
+
+    // Cached blocks are copied from memory, and each run of consecutive blocks that are not cached
+    // is read from the device with a single readBlocks(), without holding the lock (like readBlock())
+    @Override
+    public void readBlocks(int first, ByteBuffer dst) throws IOException {
+        int end = first + dst.remaining() / BLOCK_SIZE;
+        int block = first;
+        while (block < end) {
+            int runEnd;
+            long stamp;
+            synchronized (this) {
+                byte data[];
+                while (block < end && (data = blocks.get(block)) != null) {
+                    hits++;
+                    dst.put(data);
+                    block++;
+                }
+                if (block == end) return;
+
+                runEnd = block + 1;
+                while (runEnd < end && !blocks.containsKey(runEnd)) runEnd++;
+                misses += runEnd - block;
+                stamp = writes;
+            }
+
+            int start = dst.position();
+            ByteBuffer run = dst.duplicate();
+            run.limit(start + (runEnd - block) * BLOCK_SIZE);
+            DEVICE.readBlocks(block, run);
+
+            synchronized (this) {
+                for (int b = block; b < runEnd; b++) {
+                    ByteBuffer slot = dst.duplicate();
+                    slot.position(start + (b - block) * BLOCK_SIZE);
+                    byte cached[] = blocks.get(b);
+                    if (cached != null) {
+                        // Read or written by another thread in the meantime: the cached copy wins
+                        slot.put(cached);
+                    } else if (writes == stamp) {
+                        byte data[] = new byte[BLOCK_SIZE];
+                        slot.get(data);
+                        insert(b, data);
+                    }
+                }
+            }
+            dst.position(run.position());
+            block = runEnd;
+        }
+    }
+
+    @Override
+    public synchronized void writeBlock(int block, ByteBuffer src) throws IOException {
+        writes++;
+        byte data[] = blocks.get(block);
+        if (data == null) {
+            data = new byte[BLOCK_SIZE];
+            src.duplicate().get(data);
+            insert(block, data);
+        } else {
+            src.duplicate().get(data);
+        }
+
+        if (mode == Mode.WRITE_THROUGH) {
+            DEVICE.writeBlock(block, src);
+        } else {
+            dirtyBlocks.put(block, data);
+            src.position(src.position() + BLOCK_SIZE);
+        }
+    }
+
+    // Writes every dirty block to the device, in block order
+    public synchronized void sync() throws IOException {
+        for (Map.Entry<Integer, byte[]> entry : dirtyBlocks.entrySet()) {
+            DEVICE.writeBlock(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+        }
+        dirtyBlocks.clear();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        sync();
+        DEVICE.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        DEVICE.close();
+    }
+
+    // Changing to WRITE_THROUGH writes back the dirty blocks first
+    public synchronized void setMode(Mode mode) throws IOException {
+        if (mode == Mode.WRITE_THROUGH) sync();
+        this.mode = mode;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    // Drops every cached block (the dirty ones are written back first)
+    public synchronized void invalidate() throws IOException {
+        sync();
+        blocks.clear();
+    }
+
+    public int getCapacity() {
+        return CAPACITY;
+    }
+
+    public synchronized int getCachedBlocks() {
+        return blocks.size();
+    }
+
+    public synchronized int getDirtyBlocks() {
+        return dirtyBlocks.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = hits + misses;
+        return String.format("%d/%d blocks cached, %d dirty, %d hits, %d misses (%.1f%% hit rate)",
+                blocks.size(),
+                CAPACITY,
+                dirtyBlocks.size(),
+                hits,
+                misses,
+                total == 0 ? 0.0 : 100.0 * hits / total);
+    }
+
+    // Adds a block to the cache, evicting the least recently used ones to stay within the budget.
+    // Dirty blocks are written to the device before they are dropped
+    private void insert(int block, byte data[]) throws IOException {
+        Iterator<Map.Entry<Integer, byte[]>> eldest = blocks.entrySet().iterator();
+        while (blocks.size() >= CAPACITY && eldest.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = eldest.next();
+            byte dirty[] = dirtyBlocks.remove(entry.getKey());
+            if (dirty != null) {
+                DEVICE.writeBlock(entry.getKey(), ByteBuffer.wrap(dirty));
+            }
+            eldest.remove();
+        }
+        blocks.put(block, data);
+    }
+}
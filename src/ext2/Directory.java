@@ -1,33 +1,66 @@
 package ext2;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
+// The name lookups use a hash index of the dir_entries (name -> dir_entry and the block that holds it).
+// It only lives in memory and is built the first time a name is looked up, after that it must be kept up
+// to date by adding and removing dir_entries through addEntry() and removeEntry(). Many threads can look
+// up names at the same time (the index is built once); changes need the write lock of the directory inode
 public class Directory extends ArrayList<DirectoryBlock> {
 
+    private HashMap<String, DirectoryEntry> entryIndex;
+    private HashMap<String, DirectoryBlock> blockIndex;
+
     public Directory() {
         super();
     }
 
-    public DirectoryEntry findEntry(String name) {
-        for (DirectoryBlock block : this) {
-            for (DirectoryEntry dirEntry : block) {
-                if (dirEntry.getFilename().equals(name)) {
-                    return dirEntry;
-                }
+    public synchronized DirectoryEntry findEntry(String name) {
+        buildIndex();
+        return entryIndex.get(name);
+    }
+
+    public synchronized DirectoryBlock getBlockContaining(String name) {
+        buildIndex();
+        return blockIndex.get(name);
+    }
+
+    @Override
+    public synchronized boolean add(DirectoryBlock block) {
+        if (entryIndex != null) {
+            for (DirectoryEntry entry : block) {
+                index(block, entry);
             }
         }
-        return null;
+        return super.add(block);
+    }
+
+    // Adds a dir_entry at the end of 'block', which must be one of the blocks of this directory
+    public synchronized void addEntry(DirectoryBlock block, DirectoryEntry entry) {
+        block.addEntry(entry);
+        if (entryIndex != null) index(block, entry);
+    }
+
+    // Removes the dir_entry at position 'index' of 'block' and returns it
+    public synchronized DirectoryEntry removeEntry(DirectoryBlock block, int index) {
+        DirectoryEntry entry = block.remove(index);
+        if (entryIndex != null && entryIndex.get(entry.getFilename()) == entry) {
+            entryIndex.remove(entry.getFilename());
+            blockIndex.remove(entry.getFilename());
+        }
+        return entry;
     }
 
-    public DirectoryBlock getBlockContaining(String name) {
+    // Copy of the blocks and their dir_entries as they are now (the entries themselves are shared)
+    public synchronized Directory copy() {
+        Directory copy = new Directory();
         for (DirectoryBlock block : this) {
-            for (DirectoryEntry entry : block) {
-                if (entry.getFilename().equals(name)) {
-                    return block;
-                }
-            }
+            DirectoryBlock blockCopy = new DirectoryBlock(block.getBlock());
+            blockCopy.addAll(block);
+            copy.add(blockCopy);
         }
-        return null;
+        return copy;
     }
 
     // Returns the inode number of the "." dir_entry of this directory (self reference)
@@ -47,4 +80,22 @@ public class Directory extends ArrayList<DirectoryBlock> {
     public DirectoryBlock getLastBlock() {
         return get(size() - 1);
     }
+
+    private void buildIndex() {
+        if (entryIndex != null) return;
+        entryIndex = new HashMap<>();
+        blockIndex = new HashMap<>();
+        for (DirectoryBlock block : this) {
+            for (DirectoryEntry entry : block) {
+                index(block, entry);
+            }
+        }
+    }
+
+    // The first dir_entry with a given name wins, like the linear search did
+    private void index(DirectoryBlock block, DirectoryEntry entry) {
+        if (entryIndex.putIfAbsent(entry.getFilename(), entry) == null) {
+            blockIndex.put(entry.getFilename(), block);
+        }
+    }
 }
@@ -63,7 +63,7 @@ public class DirectoryBlock extends ArrayList<DirectoryEntry> {
     // Returns true if this block contains entries other than the default . and ..
     public boolean hasEntries() {
         for (DirectoryEntry entry : this) {
-            if (entry.getFilename().equals(".") || entry.getFilename().equals("..")) continue;
+            if (entry.isDotEntry()) continue;
             return true;
         }
         return false;
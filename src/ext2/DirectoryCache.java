@@ -0,0 +1,78 @@
+package ext2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parsed directories indexed by the inode number of the directory, so walking a path doesn't read and
+// parse the same directory blocks again. The least recently used directory is dropped once the cache
+// holds more than its capacity. FileSystem keeps the cached Directory objects up to date: every dir_entry
+// that is added or removed is applied to the cached instance as well as written to disk. The cache can be
+// shared by many threads (the directories themselves are protected by the locks of their inodes)
+public class DirectoryCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int CAPACITY;
+    private final LinkedHashMap<Integer, Directory> directories;
+
+    private long hits;
+    private long misses;
+
+    public DirectoryCache(int capacity) {
+        CAPACITY = Math.max(1, capacity);
+        directories = new LinkedHashMap<Integer, Directory>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Directory> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+    }
+
+    public DirectoryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Returns the cached directory of inode 'inode', null if it is not cached
+    public synchronized Directory get(int inode) {
+        Directory directory = directories.get(inode);
+        if (directory != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return directory;
+    }
+
+    public synchronized void put(int inode, Directory directory) {
+        directories.put(inode, directory);
+    }
+
+    public synchronized void remove(int inode) {
+        directories.remove(inode);
+    }
+
+    public synchronized void clear() {
+        directories.clear();
+    }
+
+    public synchronized int size() {
+        return directories.size();
+    }
+
+    public int getCapacity() {
+        return CAPACITY;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d/%d directories cached, %d hits, %d misses", directories.size(), CAPACITY, hits, misses);
+    }
+}
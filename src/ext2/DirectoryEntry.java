@@ -1,6 +1,6 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
+import java.nio.ByteBuffer;
 
 public class DirectoryEntry {
 
@@ -8,6 +8,8 @@ public class DirectoryEntry {
     public static final byte FILE = 2;
     public static final byte SYM_LINK = 3;
     public static final byte HARD_LINK = 4;
+    // Bytes used by the inode, rec_len, name_len and file_type fields. The name comes right after them
+    public static final int HEADER_SIZE = 8;
     // Inode number (4 bytes)
     private int inode;
     // Record length (2 bytes)
@@ -16,22 +18,19 @@ public class DirectoryEntry {
     private byte nameLen;
     // File type (1 byte)
     private byte fileType;
-    // File name (0 - 255 bytes)
+    // File name (0 - 255 bytes), without the null terminators it is padded with on disk. It is decoded
+    // from nameSource the first time it is needed
     private String filename;
+    private final ByteBuffer nameSource;
+    private final int nameOffset;
 
     public DirectoryEntry(int inode, byte type, String name) {
-        this.inode = inode;
-        fileType = type;
+        this(inode, type, ByteBuffer.wrap(name.getBytes()));
         filename = name;
-        // As long as filename.length is not > 255 the byte can still be recovered using Byte.toUnsignedInt() method
-        nameLen = (byte) filename.length();
-        if (nameLen % 4 != 0) {
-            // Not a multiple of 4, make it one by appending null terminators
-            int nullsToAdd = 4 - (nameLen % 4);
-            for (int i = 0; i < nullsToAdd; i++) {
-                filename += '\0';
-            }
-        }
+    }
+
+    private DirectoryEntry(int inode, byte type, ByteBuffer name) {
+        this(inode, type, name, 0, name.capacity());
     }
 
     public DirectoryEntry(int inode, short recLen, byte type, String name) {
@@ -39,20 +38,54 @@ public class DirectoryEntry {
         this.recLen = recLen;
     }
 
+    private DirectoryEntry(int inode, byte type, ByteBuffer nameSource, int nameOffset, int length) {
+        this.inode = inode;
+        fileType = type;
+        this.nameSource = nameSource;
+        this.nameOffset = nameOffset;
+        // As long as the name is not longer than 255 bytes it can still be recovered using Byte.toUnsignedInt()
+        nameLen = (byte) length;
+    }
+
+    // Reads the dir_entry found at 'offset' in the buffer. The fields are read in place (the buffer
+    // position is not used nor modified). The name is neither copied nor decoded here: the entry keeps a
+    // reference to the buffer and reads the name from it when it is needed, so the buffer must not be reused
+    public static DirectoryEntry decode(ByteBuffer buffer, int offset) {
+        int inode = buffer.getInt(offset);
+        short recLen = buffer.getShort(offset + 4);
+        int nameLen = Byte.toUnsignedInt(buffer.get(offset + 6));
+        byte type = buffer.get(offset + 7);
+
+        DirectoryEntry entry = new DirectoryEntry(inode, type, buffer, offset + HEADER_SIZE, nameLen);
+        entry.recLen = recLen;
+        return entry;
+    }
+
     // Byte array representation of a directory entry so we can write it back to disk
     public byte[] toByteArray() {
-        final byte I_NODE[] = BitUtils.toByteArray(inode);
-        final byte REC_LEN[] = BitUtils.toByteArray(recLen);
-        final byte NAME_LEN[] = BitUtils.toByteArray(nameLen);
-        final byte TYPE[] = BitUtils.toByteArray(fileType);
-        final byte FILE_NAME[] = filename.getBytes();
-        return Bytes.concat(I_NODE, REC_LEN, NAME_LEN, TYPE, FILE_NAME);
+        byte array[] = new byte[getIdealLen()];
+        encode(ByteBuffer.wrap(array), 0);
+        return array;
+    }
+
+    // Writes the dir_entry (ideal_len bytes, the name padded with null terminators) at 'offset' in the
+    // buffer. The buffer position is not used nor modified
+    public void encode(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, inode);
+        buffer.putShort(offset + 4, recLen);
+        buffer.put(offset + 6, nameLen);
+        buffer.put(offset + 7, fileType);
+        int length = Byte.toUnsignedInt(nameLen);
+        int nameEnd = getIdealLen() - HEADER_SIZE;
+        for (int i = 0; i < nameEnd; i++) {
+            buffer.put(offset + HEADER_SIZE + i, (i < length) ? nameSource.get(nameOffset + i) : (byte) '\0');
+        }
     }
 
     // Ideal length: every directory entry has an ideal length (multiple of 4) based on
     // how many characters its file name has
     public short getIdealLen() {
-        return (short) (4 * ((8 + nameLen + 3) / 4));
+        return (short) (4 * ((HEADER_SIZE + Byte.toUnsignedInt(nameLen) + 3) / 4));
     }
 
     public int getInode() {
@@ -76,6 +109,20 @@ public class DirectoryEntry {
     }
 
     public String getFilename() {
-        return filename.trim();
+        if (filename == null) {
+            byte name[] = new byte[Byte.toUnsignedInt(nameLen)];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = nameSource.get(nameOffset + i);
+            }
+            filename = new String(name);
+        }
+        return filename;
+    }
+
+    // True for the "." and ".." dir_entries. Checked on the raw bytes so the name doesn't have to be decoded
+    public boolean isDotEntry() {
+        int length = Byte.toUnsignedInt(nameLen);
+        if (length == 0 || length > 2 || nameSource.get(nameOffset) != '.') return false;
+        return length == 1 || nameSource.get(nameOffset + 1) == '.';
     }
 }
@@ -8,7 +8,7 @@ public class Disk extends RandomAccessFile {
 
     // Disk volume size in KB
     // 256 MB = 262,144 KB = 268,435,456 bytes
-    private final int SIZE_MB = 256;
+    public static final int SIZE_MB = 256;
 
     public Disk(File file) throws FileNotFoundException {
         super(file, "rw");
@@ -0,0 +1,31 @@
+package ext2;
+
+// A run of 'length' consecutive blocks starting at block 'start'
+public class Extent {
+
+    private final int start;
+    private final int length;
+
+    public Extent(int start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // First block after the extent
+    public int getEnd() {
+        return start + length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d, %d)", start, getEnd());
+    }
+}
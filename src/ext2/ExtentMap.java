@@ -0,0 +1,197 @@
+package ext2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Maps the blocks of a file with extents: runs of consecutive blocks of the file stored in consecutive data
+// blocks, each one saved as (first block of the file, first data block, length) in 12 bytes. The first 4
+// extents take the place of the direct pointers of the inode, the rest go in a chain of extent blocks that
+// starts at the indirect pointer. A file written in one go to contiguous blocks needs a single extent no
+// matter its size. Blocks can only be added at the end of the file
+public class ExtentMap extends BlockMap {
+
+    // Extents that fit in the 48 bytes of the direct pointers
+    public static final int INLINE_EXTENTS = 4;
+    // An extent block starts with how many extents it holds and the next extent block (0 if it's the last one)
+    public static final int BLOCK_EXTENTS = (BLOCK_SIZE - 8) / 12;
+    // Blocks of the file are numbered with 4 bytes
+    public static final long MAX_BLOCKS = Integer.MAX_VALUE;
+
+    // An extent of the file
+    private static class Entry {
+
+        private final int fileBlock;
+        private final int start;
+        private int length;
+
+        private Entry(int fileBlock, int start, int length) {
+            this.fileBlock = fileBlock;
+            this.start = start;
+            this.length = length;
+        }
+
+        private long getFileEnd() {
+            return (long) fileBlock + length;
+        }
+    }
+
+    private final FileSystem FILE_SYSTEM;
+    private final Inode INODE;
+
+    // Extents of the file in order (read the first time they are needed) and the chain of extent blocks
+    private ArrayList<Entry> extents;
+    private final ArrayList<Integer> extentBlocks = new ArrayList<>();
+    // Positions in the chain of the extent blocks that changed
+    private final TreeSet<Integer> dirtyBlocks = new TreeSet<>();
+
+    ExtentMap(FileSystem fileSystem, Inode inode) {
+        FILE_SYSTEM = fileSystem;
+        INODE = inode;
+    }
+
+    @Override
+    public int get(long index) throws IOException {
+        Entry extent = find(index);
+        return (extent == null) ? 0 : extent.start + (int) (index - extent.fileBlock);
+    }
+
+    // Extends the last extent when 'block' comes right after it, otherwise adds a new one. A new extent
+    // block is taken from 'newBlock' when the inode and the last extent block are full
+    @Override
+    public void set(long index, int block, IntSupplier newBlock) throws IOException {
+        load();
+        if (index >= MAX_BLOCKS) {
+            throw new IllegalArgumentException(String.format("Block %d is past the biggest file size", index));
+        }
+        Entry last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+        if (last != null && index < last.getFileEnd()) {
+            throw new IllegalArgumentException(String.format("Block %d of the file already has a data block", index));
+        }
+
+        if (last != null && index == last.getFileEnd() && block == last.start + last.length) {
+            last.length++;
+            changed(extents.size() - 1);
+            return;
+        }
+        int position = extents.size();
+        if (position >= INLINE_EXTENTS && (position - INLINE_EXTENTS) % BLOCK_EXTENTS == 0) {
+            // Full: start another extent block and link it from the previous one (or from the inode)
+            int extentBlock = newBlock.getAsInt();
+            if (extentBlocks.isEmpty()) {
+                INODE.setIndirectPointer(extentBlock);
+            } else {
+                dirtyBlocks.add(extentBlocks.size() - 1);
+            }
+            extentBlocks.add(extentBlock);
+        }
+        extents.add(new Entry((int) index, block, 1));
+        changed(position);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (int position : dirtyBlocks) {
+            int first = INLINE_EXTENTS + position * BLOCK_EXTENTS;
+            int count = Math.min(BLOCK_EXTENTS, extents.size() - first);
+            int references[] = new int[BLOCK_SIZE / 4];
+            references[0] = count;
+            references[1] = (position + 1 < extentBlocks.size()) ? extentBlocks.get(position + 1) : 0;
+            for (int i = 0; i < count; i++) {
+                Entry extent = extents.get(first + i);
+                references[2 + i * 3] = extent.fileBlock;
+                references[3 + i * 3] = extent.start;
+                references[4 + i * 3] = extent.length;
+            }
+            FILE_SYSTEM.writePointerBlock(extentBlocks.get(position), references);
+        }
+        dirtyBlocks.clear();
+    }
+
+    @Override
+    public void free(IntConsumer free) throws IOException {
+        load();
+        for (Entry extent : extents) {
+            for (int block = extent.start; block < extent.start + extent.length; block++) {
+                free.accept(block);
+            }
+        }
+        for (int extentBlock : extentBlocks) {
+            free.accept(extentBlock);
+        }
+        extents.clear();
+        extentBlocks.clear();
+        dirtyBlocks.clear();
+    }
+
+    @Override
+    public long getMaxBlocks() {
+        return MAX_BLOCKS;
+    }
+
+    // A file written in one go fits in the inode unless its blocks end up in more than INLINE_EXTENTS runs,
+    // and then the extent blocks are taken as they are needed
+    @Override
+    public long countMapBlocks(long blockCount) {
+        return 0;
+    }
+
+    @Override
+    public int getRun(long index, int max) throws IOException {
+        Entry extent = find(index);
+        return (extent == null) ? 0 : (int) Math.min(max, extent.getFileEnd() - index);
+    }
+
+    // Returns the extent that holds block 'index' of the file, null if none does
+    private Entry find(long index) throws IOException {
+        load();
+        int low = 0;
+        int high = extents.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Entry extent = extents.get(middle);
+            if (index < extent.fileBlock) {
+                high = middle - 1;
+            } else if (index >= extent.getFileEnd()) {
+                low = middle + 1;
+            } else {
+                return extent;
+            }
+        }
+        return null;
+    }
+
+    // Reads the extents from the inode and the chain of extent blocks
+    private void load() throws IOException {
+        if (extents != null) return;
+        extents = new ArrayList<>();
+        for (int i = 0; i < INLINE_EXTENTS && INODE.getDirectPointer(i * 3 + 2) != 0; i++) {
+            extents.add(new Entry(INODE.getDirectPointer(i * 3), INODE.getDirectPointer(i * 3 + 1), INODE.getDirectPointer(i * 3 + 2)));
+        }
+        int extentBlock = INODE.getIndirectPointer();
+        while (extentBlock != 0) {
+            int references[] = FILE_SYSTEM.readPointerBlock(extentBlock);
+            extentBlocks.add(extentBlock);
+            for (int i = 0; i < references[0]; i++) {
+                extents.add(new Entry(references[2 + i * 3], references[3 + i * 3], references[4 + i * 3]));
+            }
+            extentBlock = references[1];
+        }
+    }
+
+    // Saves extent 'position': in the inode right away if it's one of the first ones, else on flush()
+    private void changed(int position) {
+        if (position < INLINE_EXTENTS) {
+            Entry extent = extents.get(position);
+            INODE.setDirectPointer(position * 3, extent.fileBlock);
+            INODE.setDirectPointer(position * 3 + 1, extent.start);
+            INODE.setDirectPointer(position * 3 + 2, extent.length);
+        } else {
+            dirtyBlocks.add((position - INLINE_EXTENTS) / BLOCK_EXTENTS);
+        }
+    }
+}
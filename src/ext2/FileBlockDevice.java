@@ -0,0 +1,90 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Block device that reads and writes the binary file with positional FileChannel calls. There is no
+// shared seek pointer, so one call is one system call and concurrent callers don't step on each other
+public class FileBlockDevice extends AbstractBlockDevice {
+
+    private final Disk DISK;
+    private final FileChannel CHANNEL;
+
+    public FileBlockDevice(Disk disk) throws IOException {
+        super(disk.getSizeBytes() / BLOCK_SIZE);
+        DISK = disk;
+        CHANNEL = disk.getChannel();
+        // Give the file the size of the whole volume up front. Nothing is written, so the host file
+        // system keeps the blocks that were never written as holes (sparse file) that read as zeros
+        if (disk.length() < disk.getSizeBytes()) {
+            disk.setLength(disk.getSizeBytes());
+        }
+    }
+
+    @Override
+    public void readBlock(int block, ByteBuffer dst) throws IOException {
+        checkBlock(block, dst);
+        int limit = dst.limit();
+        int end = dst.position() + BLOCK_SIZE;
+        dst.limit(end);
+        try {
+            long position = (long) block * BLOCK_SIZE;
+            while (dst.hasRemaining()) {
+                int read = CHANNEL.read(dst, position);
+                if (read < 0) {
+                    // The file is shorter than the volume, the missing part reads as zeros
+                    while (dst.hasRemaining()) dst.put((byte) 0);
+                    break;
+                }
+                position += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    // All the blocks are read with a single positional read
+    @Override
+    public void readBlocks(int first, ByteBuffer dst) throws IOException {
+        int count = dst.remaining() / BLOCK_SIZE;
+        checkBlocks(first, count, dst);
+        long position = (long) first * BLOCK_SIZE;
+        while (dst.hasRemaining()) {
+            int read = CHANNEL.read(dst, position);
+            if (read < 0) {
+                // The file is shorter than the volume, the missing part reads as zeros
+                while (dst.hasRemaining()) dst.put((byte) 0);
+                break;
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void writeBlock(int block, ByteBuffer src) throws IOException {
+        checkBlock(block, src);
+        int limit = src.limit();
+        src.limit(src.position() + BLOCK_SIZE);
+        try {
+            long position = (long) block * BLOCK_SIZE;
+            while (src.hasRemaining()) {
+                position += CHANNEL.write(src, position);
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        CHANNEL.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        DISK.close();
+    }
+}
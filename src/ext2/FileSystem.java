@@ -1,97 +1,271 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Shorts;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.Math.toIntExact;
 
 public class FileSystem {
 
-    private final Disk DISK;
+    // Every read and write of the volume goes through the buffer cache
+    private final BufferCache DEVICE;
 
     // Disk block size in KB
     public static final int BLOCK_SIZE = 4096;
 
+    // The volume is split in block groups (like ext2) after the superblock, which takes block 0. Each group
+    // starts with its data bitmap, its inode bitmap and its inode table, followed by its data blocks.
+    // Blocks are numbered like the device blocks, and the ones taken by the metadata are set in the data bitmap
+    private static final int BLOCKS_PER_GROUP = 8192;
+    private static final int INODES_PER_GROUP = 256;
+
     // Blocks per group
-    private final int DATA_BITMAP_BLOCKS = 2;
-    private final int INODE_BITMAP_BLOCKS = 1;
-    private final int INODE_TABLE_BLOCKS = 20;
+    private static final int DATA_BITMAP_BLOCKS = 1;
+    private static final int INODE_BITMAP_BLOCKS = 1;
+    private static final int INODE_TABLE_BLOCKS = INODES_PER_GROUP * Inode.INODE_SIZE / BLOCK_SIZE; // 8 blocks
+    private static final int GROUP_METADATA_BLOCKS = DATA_BITMAP_BLOCKS + INODE_BITMAP_BLOCKS + INODE_TABLE_BLOCKS; // 10 blocks
 
     // Size per group
-    private final int DATA_BITMAP_SIZE = DATA_BITMAP_BLOCKS * BLOCK_SIZE; // 8192 bytes
-    private final int INODE_BITMAP_SIZE = INODE_BITMAP_BLOCKS * BLOCK_SIZE; // 4096 bytes
-    private final int INODE_TABLE_SIZE = INODE_TABLE_BLOCKS * BLOCK_SIZE; // 81920 bytes
-
-    // Offset per group
-    private final int DATA_BITMAP_OFFSET = 0;
-    private final int INODE_BITMAP_OFFSET = DATA_BITMAP_SIZE; // byte 8192
-    private final int INODE_TABLE_OFFSET = INODE_BITMAP_OFFSET + INODE_BITMAP_SIZE; // byte 12288
-    private final int DATA_OFFSET = INODE_TABLE_OFFSET + INODE_TABLE_SIZE; // byte 94208
-
-    // Bitmaps
-    private final byte DATA_BITMAP[] = new byte[DATA_BITMAP_SIZE];
-    private final byte INODE_BITMAP[] = new byte[INODE_BITMAP_SIZE];
-
-    private Directory currentDir;
+    private static final int DATA_BITMAP_SIZE = BLOCKS_PER_GROUP / 8; // 1024 bytes (the rest of the block is not used)
+    private static final int INODE_BITMAP_SIZE = INODES_PER_GROUP / 8; // 32 bytes (the rest of the block is not used)
+    private static final int INODE_TABLE_SIZE = INODE_TABLE_BLOCKS * BLOCK_SIZE; // 32768 bytes
+
+    // Offset per group, in blocks from the start of the group
+    private static final int DATA_BITMAP_OFFSET = 0;
+    private static final int INODE_BITMAP_OFFSET = DATA_BITMAP_OFFSET + DATA_BITMAP_BLOCKS; // block 1
+    private static final int INODE_TABLE_OFFSET = INODE_BITMAP_OFFSET + INODE_BITMAP_BLOCKS; // block 2
+
+    // Volumes with less room than this in group 0 don't get a journal
+    private static final int MIN_JOURNAL_BLOCKS = 16;
+
+    // Groups that fit in the device (8 for 256 MB, the last one can be shorter) and the inodes they hold
+    private final int GROUP_COUNT;
+    private final int TOTAL_INODES;
+
+    // Bitmaps of every group, one after the other
+    private final Bitmap DATA_BITMAP;
+    private final Bitmap INODE_BITMAP;
+
+    // Data blocks are handed out (and given back) through the allocator, which keeps DATA_BITMAP up to date
+    private final BlockAllocator ALLOCATOR;
+
+    // Scratch block used to read and write the volume, one per thread
+    private final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK_SIZE));
+    // Scratch for inodes, only used with the metadata lock held. Inodes never span two blocks with the current
+    // INODE_SIZE, but writeInode() doesn't rely on it
+    private final ByteBuffer inodeBuffer = ByteBuffer.allocate(2 * BLOCK_SIZE);
+
+    // When set, the inodes are decoded from the inode table the first time they are needed instead of at load()
+    private boolean lazyInodes;
+
+    // When set, new files map their blocks with extents instead of block pointers. Saved in the superblock by format()
+    private boolean extentFiles;
+
+    private Superblock superblock;
+    private boolean superblockChanged;
+    // Free inodes of each group (the free blocks are counted by the allocator)
+    private int freeInodes[];
+
+    // When set, writeBitmaps() leaves the changed bitmap blocks in memory until flushBitmaps() is called
+    private boolean deferBitmapFlush;
+
+    // Metadata writes (inodes, directory blocks, blocks of the file maps, bitmaps and the superblock) go
+    // through the journal of the volume while journaling is on. Data blocks are written in place
+    private Journal journal;
+    private boolean journaling = true;
+    private int commitOperations = Journal.DEFAULT_COMMIT_OPERATIONS;
+    private long commitMillis = Journal.DEFAULT_COMMIT_MILLIS;
+    // Whether a timed commit is waiting in COMMITTER for the running transaction (so a volume that goes idle
+    // still commits its last operations once their time is up)
+    private boolean commitScheduled;
+    private static final ScheduledExecutorService COMMITTER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "ext2-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Open begin() calls. While a batch is open the bitmaps are written once at the end, and without
+    // journaling the metadata blocks wait here (block -> content) to be written once each, in block order
+    private int batchDepth;
+    private final TreeMap<Integer, byte[]> batchBlocks = new TreeMap<>();
+
+    // Many threads can use the file system at once (format() and load() excepted). Each operation takes,
+    // always in this order: the read lock of TRANSACTION if it changes the volume (a journal commit takes the
+    // write lock, so it never holds half an operation), the locks of the inodes it reads or changes (a
+    // directory before what is inside it), the METADATA lock while it reads or writes metadata blocks (the
+    // journal and the batch are behind it too) and the ALLOCATOR monitor for the bitmaps, the free counts and
+    // the superblock. Data blocks are read and written with only the lock of their file
+    private final ReentrantReadWriteLock TRANSACTION = new ReentrantReadWriteLock();
+    private final InodeLocks LOCKS;
+    private final ReentrantReadWriteLock METADATA = new ReentrantReadWriteLock();
+
+    // Inode of the current directory of each thread, the root directory to begin with
+    private final ThreadLocal<Integer> currentDir = ThreadLocal.withInitial(() -> 1);
     private InodeTable inodeTable;
+    private final DirectoryCache DIRECTORIES = new DirectoryCache();
+    private final PathCache PATHS = new PathCache();
+    // Names of the new files whose stream is still open, as "<directory inode>/<name>". Nothing else can take
+    // them; they are added and removed with the write lock of the directory held
+    private final Set<String> PENDING_NAMES = ConcurrentHashMap.newKeySet();
+
+    // 'device' is wrapped in a write-through BufferCache with the default size, unless it already is a BufferCache
+    public FileSystem(BlockDevice device) {
+        DEVICE = device instanceof BufferCache ? (BufferCache) device : new BufferCache(device);
+
+        // A group needs room for at least one data block after its metadata
+        int groupBlocks = device.getBlockCount() - 1;
+        int groups = groupBlocks / BLOCKS_PER_GROUP + (groupBlocks % BLOCKS_PER_GROUP > GROUP_METADATA_BLOCKS ? 1 : 0);
+        if (groups < 1 || groups > Superblock.MAX_GROUPS) {
+            throw new IllegalArgumentException(String.format("A volume of %d blocks is not supported", device.getBlockCount()));
+        }
+        GROUP_COUNT = groups;
+        TOTAL_INODES = GROUP_COUNT * INODES_PER_GROUP;
 
-    public FileSystem(Disk disk) {
-        DISK = disk;
+        DATA_BITMAP = new Bitmap(GROUP_COUNT * BLOCKS_PER_GROUP, BLOCKS_PER_GROUP);
+        INODE_BITMAP = new Bitmap(TOTAL_INODES, INODES_PER_GROUP);
+        ALLOCATOR = new BlockAllocator(DATA_BITMAP, Math.min(groupBlocks, GROUP_COUNT * BLOCKS_PER_GROUP));
+        LOCKS = new InodeLocks(TOTAL_INODES);
     }
 
     // Get the structures from disk and allocate them to memory
     public void load() throws IOException {
-        if (currentDir == null) {
+        if (inodeTable == null) {
+            readSuperblock();
+            openJournal();
             // Load bitmaps and inode table to memory
-            allocateBitmaps();
-            allocateInodeTable();
+            byte table[] = new byte[GROUP_COUNT * INODE_TABLE_SIZE];
+            allocateBitmaps(table);
+            allocateInodeTable(table);
             // Read the root directory
-            currentDir = getRoot();
+            getRoot();
         }
     }
 
-    private void allocateBitmaps() throws IOException {
-        DISK.seek(DATA_BITMAP_OFFSET);
-        DISK.read(DATA_BITMAP);
-        DISK.read(INODE_BITMAP);
+    private void readSuperblock() throws IOException {
+        ByteBuffer blockBuffer = SCRATCH.get();
+        blockBuffer.clear();
+        DEVICE.readBlock(0, blockBuffer);
+        superblock = Superblock.decode(blockBuffer);
+        if (superblock == null || superblock.getGroupCount() != GROUP_COUNT
+                || superblock.getBlocksPerGroup() != BLOCKS_PER_GROUP || superblock.getInodesPerGroup() != INODES_PER_GROUP) {
+            throw new IOException("The volume doesn't have the layout of this file system, it has to be formatted again");
+        }
+        extentFiles = superblock.usesExtents();
+        superblockChanged = false;
     }
 
-    private void allocateInodeTable() throws IOException {
-        byte inodeBytes[] = new byte[80];
-        inodeTable = new InodeTable();
-        Inode inode;
+    // Replays what was committed to the journal and not checkpointed before anything else is read (the
+    // superblock itself can be in it)
+    private void openJournal() throws IOException {
+        journal = null;
+        if (superblock.getJournalBlocks() == 0) return;
+        journal = new Journal(DEVICE, superblock.getJournalStart(), superblock.getJournalBlocks());
+        journal.setGroupCommit(commitOperations, commitMillis);
+        if (journal.replay() > 0) readSuperblock();
+    }
+
+    // The metadata of a group (bitmaps and inode table) is read with a single I/O. The inode tables of every
+    // group are copied one after the other into table[]
+    private void allocateBitmaps(byte table[]) throws IOException {
+        byte dataBitmap[] = new byte[GROUP_COUNT * DATA_BITMAP_SIZE];
+        byte inodeBitmap[] = new byte[GROUP_COUNT * INODE_BITMAP_SIZE];
+        byte metadata[] = new byte[GROUP_METADATA_BLOCKS * BLOCK_SIZE];
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            read(getGroupStart(group) * BLOCK_SIZE, metadata);
+            System.arraycopy(metadata, DATA_BITMAP_OFFSET * BLOCK_SIZE, dataBitmap, group * DATA_BITMAP_SIZE, DATA_BITMAP_SIZE);
+            System.arraycopy(metadata, INODE_BITMAP_OFFSET * BLOCK_SIZE, inodeBitmap, group * INODE_BITMAP_SIZE, INODE_BITMAP_SIZE);
+            System.arraycopy(metadata, INODE_TABLE_OFFSET * BLOCK_SIZE, table, group * INODE_TABLE_SIZE, INODE_TABLE_SIZE);
+        }
+        DATA_BITMAP.load(dataBitmap);
+        INODE_BITMAP.load(inodeBitmap);
+        ALLOCATOR.rebuild();
+        countFreeInodes();
+    }
 
-        // Get all indexes already taken in the inode bitmap
-        // ArrayList<Integer> usedInodes = BitUtils.findAllSetBits(INODE_BITMAP);
-        int totalInodes = 1024;
-        for (int index = 1; index <= totalInodes; index++) {
-            DISK.seek(getInodeOffset(index));
-            DISK.read(inodeBytes);
-            inode = Inode.fromByteArray(inodeBytes, index);
+    private void allocateInodeTable(byte table[]) {
+        if (lazyInodes) {
+            inodeTable = new InodeTable(TOTAL_INODES, table, INODE_BITMAP);
+            return;
+        }
+
+        // Only decode the inodes that are taken in the inode bitmap
+        inodeTable = new InodeTable(TOTAL_INODES);
+        ByteBuffer buffer = ByteBuffer.wrap(table);
+        for (int index = INODE_BITMAP.nextSetBit(1); index != 0 && index <= TOTAL_INODES; index = INODE_BITMAP.nextSetBit(index + 1)) {
+            int offset = (index - 1) * Inode.INODE_SIZE;
+            Inode inode = Inode.decode(buffer, offset, index);
             if (inode != null)
                 inodeTable.put(index, inode);
         }
     }
 
+    // Lazy loading makes load() cost the same no matter how many inodes are used, each inode is decoded
+    // on its first access. It must be set before calling load()
+    public void setLazyInodeLoading(boolean lazy) {
+        lazyInodes = lazy;
+    }
+
     public void format() throws IOException {
-        final byte ZEROS[] = new byte[DISK.getSizeBytes()];
-        DISK.seek(0);
-        DISK.write(ZEROS);
+        format(false);
+    }
+
+    // A full format writes zeros to every block of the volume. A quick one only clears the metadata
+    // (superblock, bitmaps and inode tables) and the root directory block: the data blocks can keep whatever
+    // they had because nothing points to them until the data bitmap hands them out again
+    public void format(boolean full) throws IOException {
+        // Everything is written in place, the journal starts empty at the end
+        journal = null;
+        if (full) {
+            zeroBlocks(0, DEVICE.getBlockCount());
+        } else {
+            zeroBlocks(0, 1);
+            for (int group = 0; group < GROUP_COUNT; group++) {
+                // The root directory gets the first data block of group 0, right after its inode table
+                zeroBlocks(getGroupStart(group), GROUP_METADATA_BLOCKS + (group == 0 ? 1 : 0));
+            }
+        }
+        superblock = new Superblock(DEVICE.getBlockCount(), BLOCKS_PER_GROUP, INODES_PER_GROUP, GROUP_COUNT);
+        superblock.setExtents(extentFiles);
+        superblockChanged = true;
+
+        // The metadata blocks of every group (and the blocks past the end of the device) are never handed out
+        DATA_BITMAP.clear();
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            for (int block = getGroupStart(group); block < getGroupStart(group) + GROUP_METADATA_BLOCKS; block++) {
+                DATA_BITMAP.setBit(block);
+            }
+        }
+        for (int block = DEVICE.getBlockCount(); block <= DATA_BITMAP.getSize(); block++) {
+            DATA_BITMAP.setBit(block);
+        }
+        INODE_BITMAP.clear();
+        ALLOCATOR.rebuild();
+        countFreeInodes();
 
-        // Create the first directory (root)
-        int dirBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-        int dirInode = BitUtils.nextClearBitThenSet(INODE_BITMAP);
+        // Create the first directory (root), which has to be inode 1
+        int dirInode = allocateInode(0, true);
+        int dirBlock = allocateBlock(dirInode, 0);
 
         // Create an inode for root
         Inode inode = new Inode(dirInode, Inode.DIRECTORY);
         inode.addBlocks(dirBlock);
-        inodeTable = new InodeTable();
+        inodeTable = new InodeTable(TOTAL_INODES);
         inodeTable.put(dirInode, inode);
 
         // Create . and .. directory entries
@@ -101,42 +275,297 @@ public class FileSystem {
         parent = new DirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, "..");
         block.addEntry(self);
         block.addEntry(parent);
-        currentDir = new Directory();
-        currentDir.add(block);
+        Directory root = new Directory();
+        root.add(block);
+        DIRECTORIES.clear();
+        DIRECTORIES.put(dirInode, root);
+        PATHS.clear();
+        currentDir.set(dirInode);
 
         // Write the directory inode and its entries to disk
-        DISK.seek(getInodeOffset(dirInode));
-        DISK.write(inode.toByteArray());
-        DISK.seek(getDataBlockOffset(dirBlock));
-        DISK.write(self.toByteArray());
-        DISK.write(parent.toByteArray());
+        writeInode(inode);
+        writeDirectoryBlock(block);
+
+        // The journal takes contiguous blocks of group 0 right after the root directory (a quarter of the group
+        // at most), none if the volume is too small for it
+        int journalBlocks = Math.min(Journal.DEFAULT_BLOCKS, getFreeBlocks(0) / 4);
+        if (journalBlocks >= MIN_JOURNAL_BLOCKS) {
+            int journalStart = allocateBlocks(journalBlocks, dirInode, dirBlock + 1).get(0);
+            superblock.setJournal(journalStart, journalBlocks);
+        }
 
         // Save data and inode bitmaps to disk
-        writeBitmaps();
+        flushBitmaps();
+
+        if (superblock.getJournalBlocks() > 0) {
+            journal = new Journal(DEVICE, superblock.getJournalStart(), superblock.getJournalBlocks());
+            journal.setGroupCommit(commitOperations, commitMillis);
+            journal.format();
+        }
     }
 
     private void writeBitmaps() throws IOException {
-        DISK.seek(DATA_BITMAP_OFFSET);
-        DISK.write(DATA_BITMAP);
-        DISK.write(INODE_BITMAP);
+        METADATA.writeLock().lock();
+        try {
+            if (!deferBitmapFlush && batchDepth == 0) flushBitmaps();
+        } finally {
+            METADATA.writeLock().unlock();
+        }
     }
 
-    public void writeDirectory(String name) throws IOException, IllegalArgumentException {
-        if (currentDir.findEntry(name) != null) {
-            throw new IllegalArgumentException("The is already a file with the same name");
+    // Writes back the bitmap blocks that changed since they were last written (usually one or two of the
+    // group the operation worked on), and the superblock if the directory count of a group changed
+    public void flushBitmaps() throws IOException {
+        METADATA.writeLock().lock();
+        try {
+            synchronized (ALLOCATOR) {
+                writeDirtyBlocks(DATA_BITMAP, DATA_BITMAP_OFFSET, DATA_BITMAP_SIZE);
+                writeDirtyBlocks(INODE_BITMAP, INODE_BITMAP_OFFSET, INODE_BITMAP_SIZE);
+                if (superblockChanged) {
+                    ByteBuffer blockBuffer = SCRATCH.get();
+                    Arrays.fill(blockBuffer.array(), (byte) 0);
+                    superblock.encode(blockBuffer);
+                    blockBuffer.clear();
+                    writeMetadataBlock(0, blockBuffer);
+                    superblockChanged = false;
+                }
+            }
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Each group keeps its part of the bitmap ('size' bytes) at the start of block 'offset' of the group
+    private void writeDirtyBlocks(Bitmap bitmap, int offset, int size) throws IOException {
+        ByteBuffer blockBuffer = SCRATCH.get();
+        for (int group = bitmap.nextDirtyBlock(0); group >= 0; group = bitmap.nextDirtyBlock(group + 1)) {
+            Arrays.fill(blockBuffer.array(), (byte) 0);
+            bitmap.toByteArray(blockBuffer.array(), group * size, size);
+            blockBuffer.clear();
+            writeMetadataBlock(getGroupStart(group) + offset, blockBuffer);
+            bitmap.clearDirty(group);
+        }
+    }
+
+    // With deferred flushing, many operations can change the bitmaps and the changed blocks are written
+    // only once, by flushBitmaps() or sync(). Turning it off writes whatever is pending
+    public void setDeferredBitmapFlush(boolean defer) throws IOException {
+        deferBitmapFlush = defer;
+        if (!defer) flushBitmaps();
+    }
+
+    // Writes every pending change and asks the device to persist it: with journaling, the running transaction
+    // is committed (once the operations in progress are done)
+    public void sync() throws IOException {
+        TRANSACTION.writeLock().lock();
+        METADATA.writeLock().lock();
+        try {
+            flushBitmaps();
+            if (isJournaling()) journal.commit();
+            writeBatchBlocks();
+        } finally {
+            METADATA.writeLock().unlock();
+            TRANSACTION.writeLock().unlock();
+        }
+        DEVICE.flush();
+    }
+
+    // Starts a batch: the operations until the matching commit() are applied in memory and every metadata
+    // block they change is written once, however many of them change it. With journaling the whole batch
+    // goes in a single transaction unless it gets too big for the log (then it's split between two
+    // operations). Batches can be nested, only the outermost commit() writes. A batch covers the operations
+    // of every thread, not only the one that started it
+    public void begin() {
+        METADATA.writeLock().lock();
+        try {
+            batchDepth++;
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Ends the batch started by begin() and writes what it changed. Nothing is flushed: call sync() for that
+    public void commit() throws IOException {
+        TRANSACTION.writeLock().lock();
+        METADATA.writeLock().lock();
+        try {
+            if (batchDepth == 0) throw new IllegalStateException("There is no batch to commit");
+            if (--batchDepth > 0) return;
+            flushBitmaps();
+            if (isJournaling()) journal.commit();
+            writeBatchBlocks();
+        } finally {
+            METADATA.writeLock().unlock();
+            TRANSACTION.writeLock().unlock();
+        }
+    }
+
+    // Runs 'work' between begin() and commit(). The operations done before an exception are still committed
+    public void batch(Batch work) throws IOException {
+        begin();
+        try {
+            work.run(this);
+        } finally {
+            commit();
+        }
+    }
+
+    // Operations for batch()
+    public interface Batch {
+        void run(FileSystem fileSystem) throws IOException;
+    }
+
+    private void writeBatchBlocks() throws IOException {
+        for (Map.Entry<Integer, byte[]> block : batchBlocks.entrySet()) {
+            DEVICE.writeBlock(block.getKey(), ByteBuffer.wrap(block.getValue()));
+        }
+        batchBlocks.clear();
+    }
+
+    // Turns journaling on or off (it's on by default for volumes that have a journal). Turning it off commits
+    // and checkpoints everything first, after that metadata is written in place like data
+    public void setJournaling(boolean on) throws IOException {
+        TRANSACTION.writeLock().lock();
+        METADATA.writeLock().lock();
+        try {
+            if (!on && isJournaling()) {
+                sync();
+                journal.checkpoint();
+            }
+            journaling = on;
+        } finally {
+            METADATA.writeLock().unlock();
+            TRANSACTION.writeLock().unlock();
+        }
+    }
+
+    // Group commit: the running transaction is committed after 'operations' operations or 'millis'
+    // milliseconds since its first operation, whatever comes first, and on sync(). The time limit holds even
+    // if no other operation comes (a background thread commits), so outside of batches a crash loses at most
+    // that much work, and always whole operations. (1, 0) commits every operation, each one with a flush of
+    // the device
+    public void setGroupCommit(int operations, long millis) {
+        METADATA.writeLock().lock();
+        try {
+            commitOperations = operations;
+            commitMillis = millis;
+            if (journal != null) journal.setGroupCommit(operations, millis);
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Journal of the volume, with its counters. Null if the volume doesn't have one
+    public Journal getJournal() {
+        return journal;
+    }
+
+    private boolean isJournaling() {
+        return journaling && journal != null;
+    }
+
+    // Body of an operation that changes the volume, see update()
+    private interface Update<T> {
+        T run() throws IOException;
+    }
+
+    // Runs 'body' as an operation on inode 'inode', holding its write lock (or its read lock when 'exclusive'
+    // is false), and returns what it returns. A journal commit never starts while the operation runs
+    private <T> T update(int inode, boolean exclusive, Update<T> body) throws IOException {
+        T result;
+        TRANSACTION.readLock().lock();
+        Lock lock = exclusive ? LOCKS.write(inode) : LOCKS.read(inode);
+        try {
+            result = body.run();
+        } finally {
+            lock.unlock();
+            TRANSACTION.readLock().unlock();
+        }
+        endOperation();
+        return result;
+    }
+
+    // Called when an operation that changed the volume is done. The transaction is only committed between
+    // operations, so it always holds whole ones. The bitmaps go in it too, even with deferred flushing
+    private void endOperation() throws IOException {
+        // An operation run inside another one (writeFile() closing its stream) leaves it to the outer one
+        if (TRANSACTION.getReadHoldCount() > 0) return;
+        boolean commit;
+        METADATA.writeLock().lock();
+        try {
+            commit = isJournaling() && (batchDepth > 0 ? journal.isFull() : journal.operationDone());
+            if (!commit && isJournaling() && batchDepth == 0) scheduleCommit();
+        } finally {
+            METADATA.writeLock().unlock();
         }
-        int dirInode = BitUtils.nextClearBitThenSet(INODE_BITMAP);
+        if (!commit) return;
 
-        addDirectoryEntry(dirInode, DirectoryEntry.DIRECTORY, name);
+        // Another thread may have committed while this one waited for the other operations to finish
+        TRANSACTION.writeLock().lock();
+        METADATA.writeLock().lock();
+        try {
+            if (isJournaling() && (batchDepth > 0 ? journal.isFull() : journal.isDue())) {
+                flushBitmaps();
+                journal.commit();
+            }
+        } finally {
+            METADATA.writeLock().unlock();
+            TRANSACTION.writeLock().unlock();
+        }
+    }
+
+    // Makes COMMITTER commit the running transaction when its time is up, unless an operation does it first.
+    // Called with the METADATA write lock held
+    private void scheduleCommit() {
+        long dueTime = journal.getDueTime();
+        if (commitScheduled || dueTime < 0) return;
+        commitScheduled = true;
+        COMMITTER.schedule(this::commitIfDue, Math.max(0, dueTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    // Run by COMMITTER. If the transaction it was scheduled for was already committed, the one running now
+    // gets its own turn
+    private void commitIfDue() {
+        TRANSACTION.writeLock().lock();
+        METADATA.writeLock().lock();
+        try {
+            commitScheduled = false;
+            if (!isJournaling() || batchDepth > 0) return;
+            if (journal.isDue()) {
+                flushBitmaps();
+                journal.commit();
+            } else {
+                scheduleCommit();
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            METADATA.writeLock().unlock();
+            TRANSACTION.writeLock().unlock();
+        }
+    }
 
-        // Get the next available block for the new directory and create its inode
-        int dirBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);
+    // Creates a directory in the current directory
+    public void writeDirectory(String name) throws IOException, IllegalArgumentException {
+        int parentInode = currentDir.get();
+        update(parentInode, true, () -> writeDirectory(readDirectory(parentInode), name));
+    }
+
+    // Returns the inode of the new directory
+    private int writeDirectory(Directory parentDir, String name) throws IOException {
+        checkName(parentDir, name);
+        int dirInode = allocateInode(parentDir.getInode(), true);
+
+        addDirectoryEntry(parentDir, dirInode, DirectoryEntry.DIRECTORY, name);
+
+        // Get a block for the new directory in the group of its inode and create the inode
+        int dirBlock = allocateBlock(dirInode, 0);
         Inode inode = new Inode(dirInode, Inode.DIRECTORY);
         inode.addBlocks(dirBlock);
         inodeTable.put(dirInode, inode);
 
         // The parent of the new directory is going to be the current directory
-        int parentInode = currentDir.getInode();
+        int parentInode = parentDir.getInode();
 
         // Create . and .. directory entries for the new directory
         DirectoryEntry self, parent;
@@ -145,191 +574,193 @@ public class FileSystem {
         DirectoryBlock block = new DirectoryBlock(dirBlock);
         block.addEntry(self);
         block.addEntry(parent);
+        Directory directory = new Directory();
+        directory.add(block);
+        DIRECTORIES.put(dirInode, directory);
 
         // Write the directory inode and its entries to disk
-        DISK.seek(getInodeOffset(dirInode));
-        DISK.write(inode.toByteArray());
-        DISK.seek(getDataBlockOffset(dirBlock));
-        DISK.write(self.toByteArray());
-        DISK.write(parent.toByteArray());
+        writeInode(inode);
+        writeDirectoryBlock(block);
 
         // Save data and inode bitmaps to disk
         writeBitmaps();
+        return dirInode;
     }
 
     // Given a block index, read the directory entries from that block
     public DirectoryBlock readDirectoryBlock(int blockIndex) throws IOException {
         DirectoryBlock block = new DirectoryBlock(blockIndex);
 
-        // Byte arrays
-        byte inodeBytes[] = new byte[4];
-        byte recLenBytes[] = new byte[2];
-        byte filenameBytes[];
-
-        int inode, idealLen;
-        short recLen;
-        byte nameLen, type;
-        String name;
+        // The whole block is read at once and the dir_entries are decoded from memory. The entries read their
+        // names from this buffer when they are needed, so it can't be the shared scratch block
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        readMetadataBlock(blockIndex, buffer);
 
         // This will determine when to stop reading a block (when the sum of all the rec_len equals 4096)
         int recLenCount = 0;
-
-        DISK.seek(getDataBlockOffset(blockIndex));
-        while (recLenCount != BLOCK_SIZE) {
-            // Read dir_entry attributes from disk
-            DISK.read(inodeBytes);
-            DISK.read(recLenBytes);
-            nameLen = DISK.readByte();
-            type = DISK.readByte();
-
-            inode = Ints.fromByteArray(inodeBytes);
-            recLen = Shorts.fromByteArray(recLenBytes);
-
-            // Read the file name bytes
-            idealLen = (4 * ((8 + nameLen + 3) / 4));
-            filenameBytes = new byte[idealLen - 8];
-            DISK.read(filenameBytes);
-            name = new String(filenameBytes);
+        int position = 0;
+        while (recLenCount != BLOCK_SIZE && position + DirectoryEntry.HEADER_SIZE <= BLOCK_SIZE) {
+            DirectoryEntry entry = DirectoryEntry.decode(buffer, position);
 
             // Check if the entry has been deleted (if the deletion time is set in its inode)
-            Inode entryInode = inodeTable.get(inode);
-            if (entryInode.getDeletionTime() == 0) {
-                DirectoryEntry entry = new DirectoryEntry(inode, recLen, type, name);
+            Inode entryInode = inodeTable.get(entry.getInode());
+            if (entryInode != null && entryInode.getDeletionTime() == 0) {
                 block.add(entry);
-                recLenCount += recLen;
-                DISK.seek(getDataBlockOffset(blockIndex) + recLenCount);
+                recLenCount += entry.getRecLen();
+                position = recLenCount;
+            } else {
+                position += entry.getIdealLen();
             }
         }
         return block;
     }
 
     public void goToDirectory(String path) throws IOException {
-        Directory initialDir = (path.startsWith("/")) ? getRoot() : currentDir;
+        int initialDir = (path.startsWith("/")) ? 1 : currentDir.get();
         DirectoryEntry entry = null;
         ArrayList<String> entries = Utils.splitPath(path);
         for (int i = 0; i < entries.size(); i++) {
             String name = entries.get(i);
-            entry = initialDir.findEntry(name);
+            entry = findEntry(initialDir, name);
             if (entry != null) {
                 if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                    Directory directory = new Directory();
-                    ArrayList<Integer> dirBlocks;
-                    int inodeNumber = entry.getInode();
-                    Inode inode = inodeTable.get(inodeNumber);
-                    dirBlocks = inode.getDirectBlocks();
-
-                    // Go through each block and read their dir_entries
-                    for (int block : dirBlocks) {
-                        directory.add(readDirectoryBlock(block));
-                    }
-
-                    initialDir = directory;
-                    currentDir = initialDir;
+                    initialDir = entry.getInode();
+                    currentDir.set(initialDir);
                 }
             }
         }
     }
 
     public DirectoryEntry findEntry(String path) throws IOException {
-        Directory initialDir = (path.startsWith("/")) ? getRoot() : currentDir;
-        DirectoryEntry entry = null;
+        return lookup(path).getEntry();
+    }
+
+    // Looks for 'name' in the directory with inode 'dirInode', with the directory read-locked
+    private DirectoryEntry findEntry(int dirInode, String name) throws IOException {
+        Lock lock = LOCKS.read(dirInode);
+        try {
+            return readDirectory(dirInode).findEntry(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the directory at 'path', null if some component of the path doesn't exist or isn't a directory
+    public Directory resolveDirectory(String path) throws IOException {
+        PathCache.Result result = lookup(path);
+        if (!result.isComplete()) return null;
+
+        DirectoryEntry entry = result.getEntry();
+        if (entry == null) {
+            // The path has no components ("/" or "")
+            return readDirectory(path.startsWith("/") ? 1 : currentDir.get());
+        }
+        return (entry.getType() == DirectoryEntry.DIRECTORY) ? readDirectory(entry.getInode()) : null;
+    }
+
+    // Walks 'path' from the root or from the current directory. Repeated lookups of the same path are
+    // answered by the path cache until a directory that was searched changes
+    private PathCache.Result lookup(String path) throws IOException {
+        int initialDir = (path.startsWith("/")) ? 1 : currentDir.get();
         ArrayList<String> entries = Utils.splitPath(path);
+        String key = PathCache.key(initialDir, entries);
+        PathCache.Result cached = PATHS.get(key);
+        if (cached != null) return cached;
+
+        // Each directory is locked only while it's searched: if one of them changes before the walk is
+        // done, the result isn't cached
+        long generation = PATHS.getGeneration();
+        ArrayList<Integer> searched = new ArrayList<>();
+        searched.add(initialDir);
+        DirectoryEntry entry = null;
+        boolean complete = true;
         for (int i = 0; i < entries.size(); i++) {
             String name = entries.get(i);
-            entry = initialDir.findEntry(name);
+            entry = findEntry(initialDir, name);
             if (entry != null) {
                 if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                    Directory directory = new Directory();
-                    ArrayList<Integer> dirBlocks;
-                    int inodeNumber = entry.getInode();
-                    Inode inode = inodeTable.get(inodeNumber);
-                    dirBlocks = inode.getDirectBlocks();
-
-                    // Go through each block and read their dir_entries
-                    for (int block : dirBlocks) {
-                        directory.add(readDirectoryBlock(block));
-                    }
-
-                    initialDir = directory;
+                    initialDir = entry.getInode();
+                    searched.add(initialDir);
                 } else {
                     // It is a file so it doesn't have directory entries. Check if it is the last element in the path
-                    return (i == entries.size() - 1) ? entry : null;
+                    boolean last = i == entries.size() - 1;
+                    return PATHS.put(key, last ? entry : null, complete && last, searched, generation);
                 }
+            } else {
+                complete = false;
             }
         }
-        return entry;
+        return PATHS.put(key, entry, complete, searched, generation);
     }
 
     // Remove a dir_entry from the current directory
     public boolean removeEntry(String name) throws IOException, IllegalArgumentException {
+        if (name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("Cannot delete . or ..");
+        }
+        int dirInode = currentDir.get();
+        return update(dirInode, true, () -> removeEntry(readDirectory(dirInode), name));
+    }
+
+    // Removes the dir_entry 'name' of 'directory' (write-locked by the caller)
+    private boolean removeEntry(Directory directory, String name) throws IOException {
         DirectoryBlock block;
         DirectoryEntry entry;
         Inode inode;
-        if ((block = currentDir.getBlockContaining(name)) != null) {
+        if ((block = directory.getBlockContaining(name)) != null) {
             for (int i = 0; i < block.size(); i++) {
                 entry = block.get(i);
                 if (entry.getFilename().equals(name)) {
                     // This entry's inode
                     inode = inodeTable.get(entry.getInode());
 
-                    // If it is a directory, check if it is empty
-                    if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                        for (int index : inode.getDirectBlocks()) {
-                            if (readDirectoryBlock(index).hasEntries()) {
-                                throw new IllegalArgumentException("Directory is not empty. Cannot delete it");
+                    Lock lock = LOCKS.write(inode.getInode());
+                    try {
+                        // If it is a directory, check if it is empty
+                        if (entry.getType() == DirectoryEntry.DIRECTORY) {
+                            for (DirectoryBlock dirBlock : readDirectory(inode.getInode())) {
+                                if (dirBlock.hasEntries()) {
+                                    throw new IllegalArgumentException("Directory is not empty. Cannot delete it");
+                                }
                             }
                         }
-                    }
 
-                    if (inode.getLinkCount() == 1) {
-                        // Clear the bits used by the dir_entry in the data bitmap
-                        for (int index : inode.getDirectBlocks()) {
-                            BitUtils.clearBit(index, DATA_BITMAP);
-                        }
+                        if (inode.getLinkCount() == 1) {
+                            // Clear the bits used by the dir_entry in the data bitmap: its data blocks and its indirect blocks
+                            BlockMap.of(this, inode).free(this::freeBlock);
 
-                        // Check if it has an indirect pointer
-                        int indirectPointer = inode.getIndirectPointer();
-                        ArrayList<Integer> references;
-                        if (indirectPointer != 0) {
-                            references = new ArrayList<>();
-                            byte blockBytes[] = new byte[4];
-                            int reference;
-                            DISK.seek(getDataBlockOffset(indirectPointer));
-                            DISK.read(blockBytes);
-                            reference = Ints.fromByteArray(blockBytes);
-                            while (reference != 0) {
-                                references.add(reference);
-                                DISK.read(blockBytes);
-                                reference = Ints.fromByteArray(blockBytes);
-                            }
-                            BitUtils.clearBit(indirectPointer, DATA_BITMAP);
+                            // Clear the bit of this inode in the inode bitmap and set its deletion time, then write it to disk
+                            freeInode(inode);
+                            DIRECTORIES.remove(inode.getInode());
+                            PATHS.invalidate(inode.getInode());
+                            inode.setDeletionTime(toIntExact(System.currentTimeMillis() / 1000));
+                            inode.setLinkCount(0);
+                            writeInode(inode);
 
-                            for (int index : references) {
-                                BitUtils.clearBit(index, DATA_BITMAP);
-                            }
+                            writeBitmaps();
                         }
-
-                        // Clear the bit of this inode in the inode bitmap and set its deletion time, then write it to disk
-                        BitUtils.clearBit(inode.getInode(), INODE_BITMAP);
-                        inode.setDeletionTime(toIntExact(System.currentTimeMillis() / 1000));
-                        inode.setLinkCount(0);
-                        DISK.seek(getInodeOffset(inode.getInode()));
-                        DISK.write(inode.toByteArray());
-
-                        writeBitmaps();
+                    } finally {
+                        lock.unlock();
                     }
-                    if (i == 0) {
-                        DISK.seek(getDataBlockOffset(block.getBlock()));
-                    } else {
+                    if (i > 0) {
                         // Update and write to disk the rec_len of the previous entry so it can 'absorb' the 'deleted' entry
                         DirectoryEntry previous = block.get(i - 1);
                         int recLen = previous.getRecLen() + entry.getRecLen();
-                        int prevOffset = block.getOffset(i - 1);
                         previous.setRecLen((short) recLen);
-                        DISK.seek(getDataBlockOffset(block.getBlock()) + prevOffset);
-                        DISK.write(previous.toByteArray());
+                        writeDirectoryEntries(block, i - 1, i);
                     }
-                    block.remove(i);
+                    directory.removeEntry(block, i);
+                    if (i == 0) {
+                        // The first dir_entry of a block has no previous one to absorb it: the next one moves to the
+                        // start of the block and takes its space (the ones after it stay where they are)
+                        if (!block.isEmpty()) {
+                            DirectoryEntry next = block.get(0);
+                            next.setRecLen((short) (next.getRecLen() + entry.getRecLen()));
+                        }
+                        writeDirectoryBlock(block);
+                    }
+                    DIRECTORIES.put(directory.getInode(), directory);
+                    PATHS.invalidate(directory.getInode());
                     return true;
                 }
             }
@@ -339,280 +770,595 @@ public class FileSystem {
 
     public void writeLink(String source, String dest, byte type) throws IOException, IllegalArgumentException {
         DirectoryEntry sourceEntry = findEntry(source);
-        Inode sourceInode = inodeTable.get(sourceEntry.getInode());
-
-        if (type == DirectoryEntry.HARD_LINK) {
-            addDirectoryEntry(sourceInode.getInode(), DirectoryEntry.FILE, dest);
-            sourceInode.setLinkCount(sourceInode.getLinkCount() + 1);
-            DISK.seek(getInodeOffset(sourceInode.getInode()));
-            DISK.write(sourceInode.toByteArray());
-        } else if (type == DirectoryEntry.SYM_LINK) {
-            int inodeNumber = BitUtils.nextClearBitThenSet(INODE_BITMAP);
-
-            addDirectoryEntry(inodeNumber, DirectoryEntry.SYM_LINK, dest);
-
-            Inode inode = new Inode(inodeNumber, Inode.SYM_LINK);
-            inode.setSymLinkUrl(source);
-            inodeTable.put(inodeNumber, inode);
-            DISK.seek(getInodeOffset(inodeNumber));
-            DISK.write(inode.toByteArray());
-            writeBitmaps();
+        if (sourceEntry == null) {
+            throw new IllegalArgumentException("The system could not find the file");
         }
+        int dirInode = currentDir.get();
+        update(dirInode, true, () -> {
+            Directory directory = readDirectory(dirInode);
+            checkName(directory, dest);
+            if (type == DirectoryEntry.HARD_LINK) {
+                // The file is locked after the directory. A directory could be above this one, so it can't be linked
+                if (sourceEntry.getType() == DirectoryEntry.DIRECTORY) {
+                    throw new IllegalArgumentException("Cannot create a hard link to a directory");
+                }
+                Lock lock = LOCKS.write(sourceEntry.getInode());
+                try {
+                    Inode sourceInode = inodeTable.get(sourceEntry.getInode());
+                    addDirectoryEntry(directory, sourceInode.getInode(), DirectoryEntry.FILE, dest);
+                    sourceInode.setLinkCount(sourceInode.getLinkCount() + 1);
+                    writeInode(sourceInode);
+                } finally {
+                    lock.unlock();
+                }
+            } else if (type == DirectoryEntry.SYM_LINK) {
+                int inodeNumber = allocateInode(dirInode, false);
+
+                addDirectoryEntry(directory, inodeNumber, DirectoryEntry.SYM_LINK, dest);
+
+                Inode inode = new Inode(inodeNumber, Inode.SYM_LINK);
+                inode.setSymLinkUrl(source);
+                inodeTable.put(inodeNumber, inode);
+                writeInode(inode);
+                writeBitmaps();
+            }
+            return null;
+        });
     }
 
     // Saves the text into available data blocks, and then creates the dir_entry and the inode for the file
     public void writeFile(String fileName, String text) throws IOException, IllegalArgumentException {
-        // Split file's bytes into groups of 4KB and write each one to disk (one block per group)
-        if (currentDir.findEntry(fileName) != null) {
-            throw new IllegalArgumentException("The is already a file with the same name");
-        }
-        byte content[][] = BitUtils.splitBytes(text.getBytes(), BLOCK_SIZE);
-        int blocksNeeded = content.length;
-        // Bytes that will go in the direct pointers
-        byte direct[][] = (blocksNeeded > 12) ? Arrays.copyOfRange(content, 0, 12) : content;
-        // Bytes that will go in the indirect pointer's block references
-        byte indirect[][] = (blocksNeeded > 12) ? Arrays.copyOfRange(content, 12, blocksNeeded) : null;
-
-        // Add the direct pointers first
-        int directBlocks[] = new int[direct.length];
-        for (int i = 0; i < direct.length; i++) {
-            byte group[] = direct[i];
-            int blockNumber = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-            directBlocks[i] = blockNumber;
-            DISK.seek(getDataBlockOffset(blockNumber));
-            DISK.write(group);
-        }
-
-        // Add the indirect pointers (if necessary)
-        ArrayList<Integer> references;
-        int indirectPointer = 0;
-        if (indirect != null) {
-            // The block references will be saved at this block
-            indirectPointer = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-            references = new ArrayList<>();
-            for (byte[] group : indirect) {
-                int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-                references.add(block);
-                DISK.seek(getDataBlockOffset(block));
-                DISK.write(group);
-            }
+        byte content[] = text.getBytes();
+        int blocksNeeded = (content.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
 
-            // Write the (indirect) block references to disk
-            DISK.seek(getDataBlockOffset(indirectPointer));
-            for (int reference : references) {
-                DISK.write(Ints.toByteArray(reference));
-            }
+        InodeOutputStream out = createFile(fileName);
+        try {
+            // The size is known: get every block at once so the file lands in as few contiguous runs as possible.
+            // Each indirect block goes right before the first block it references
+            out.reserve(blocksNeeded);
+            out.write(content);
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            // Nothing is kept, not even the inode
+            out.abort();
+            throw e;
         }
+    }
 
-        // Create a new inode for this file and write it to disk
-        int inodeNumber = BitUtils.nextClearBitThenSet(INODE_BITMAP);
-        Inode inode = new Inode(inodeNumber, Inode.FILE, text.length());
-        inode.addBlocks(directBlocks);
-        if (indirectPointer != 0) inode.setIndirectPointer(indirectPointer);
-        inodeTable.put(inodeNumber, inode);
-        DISK.seek(getInodeOffset(inodeNumber));
-        DISK.write(inode.toByteArray());
+    // Opens a stream that creates a file in the current directory. The file shows up when the stream is closed
+    public InodeOutputStream createFile(String fileName) throws IOException, IllegalArgumentException {
+        return createFile(fileName, extentFiles);
+    }
 
-        addDirectoryEntry(inodeNumber, DirectoryEntry.FILE, fileName);
-        writeBitmaps();
+    // Same as createFile(fileName), choosing whether the blocks of the file are mapped with 'extents' or with
+    // block pointers
+    public InodeOutputStream createFile(String fileName, boolean extents) throws IOException, IllegalArgumentException {
+        int dirInode = currentDir.get();
+        // The name and the inode are taken now, with the directory locked, but the inode is only saved (and the
+        // dir_entry added) when the stream is closed. Nothing is written yet, so it isn't an operation of its own
+        Inode inode;
+        Lock lock = LOCKS.write(dirInode);
+        try {
+            checkName(readDirectory(dirInode), fileName);
+            inode = new Inode(allocateInode(dirInode, false), Inode.FILE, 0);
+            PENDING_NAMES.add(dirInode + "/" + fileName);
+        } finally {
+            lock.unlock();
+        }
+        inode.setExtents(extents);
+        return new InodeOutputStream(this, dirInode, fileName, inode, true);
+    }
+
+    // Opens a stream that writes at the end of a file of the current directory, null if the file doesn't exist.
+    // Nothing is locked while the stream is open: what is written is kept in memory and added to the file when
+    // the stream is closed (or every InodeOutputStream.APPEND_BUFFER bytes), each time at the end the file has
+    // then and as a single operation, so appends to the same file don't mix
+    public InodeOutputStream appendFile(String fileName) throws IOException {
+        int dirInode = currentDir.get();
+        DirectoryEntry entry = findEntry(dirInode, fileName);
+        if (entry == null) return null;
+
+        Inode inode = inodeTable.get(entry.getInode());
+        return new InodeOutputStream(this, dirInode, fileName, inode, false);
     }
 
     // Given a file name, searches for the file in the current directory, and returns the data in the data blocks
     public byte[] readFile(String fileName) throws IOException {
-        int inode;
-        try {
-            inode = currentDir.findEntry(fileName).getInode();
-        } catch (NullPointerException npe) {
+        InodeInputStream in = openFile(fileName);
+        if (in == null) {
             // File not found
             return null;
         }
 
-        Inode fileInode = inodeTable.get(inode);
+        // The blocks are copied straight into the array, one at a time, with the file read-locked so a
+        // write can't change it halfway
+        Lock lock = LOCKS.read(in.getInode().getInode());
+        try {
+            byte content[] = new byte[toIntExact(in.getSize())];
+            int offset = 0;
+            int count;
+            while (offset < content.length && (count = in.read(content, offset, content.length - offset)) != -1) {
+                offset += count;
+            }
+            in.close();
+            return content;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Opens a stream over the content of a file of the current directory (following symbolic links), null if
+    // the file doesn't exist. The blocks are read as the stream reaches them
+    public InodeInputStream openFile(String fileName) throws IOException {
+        Inode fileInode = findFileInode(fileName);
+        if (fileInode == null) return null;
+
+        // The access time is only changed in memory, with the file read-locked, so readers don't wait for each
+        // other and reading isn't a journal operation. It reaches the disk with the next write of the inode
+        Lock lock = LOCKS.read(fileInode.getInode());
+        try {
+            fileInode.setLastAccessTime(toIntExact(System.currentTimeMillis() / 1000));
+        } finally {
+            lock.unlock();
+        }
+        return new InodeInputStream(this, fileInode);
+    }
+
+    // Returns the inode of a file of the current directory, or of the file a symbolic link points to
+    private Inode findFileInode(String fileName) throws IOException {
+        DirectoryEntry entry = findEntry(currentDir.get(), fileName);
+        if (entry == null) return null;
 
+        Inode fileInode = inodeTable.get(entry.getInode());
         if (fileInode.getType() == Inode.SYM_LINK) {
-            Directory rollback = currentDir;
+            int rollback = currentDir.get();
             String path = FilenameUtils.getPath(fileInode.getSymLinkUrl());
             String name = FilenameUtils.getName(fileInode.getSymLinkUrl());
-            goToDirectory(path);
-            byte content[] = readFile(name);
-            currentDir = rollback;
-            return content;
+            try {
+                goToDirectory(path);
+                return findFileInode(name);
+            } finally {
+                currentDir.set(rollback);
+            }
         }
+        return fileInode;
+    }
+
+    // Reads data block 'block' into 'dst'
+    void readDataBlock(int block, ByteBuffer dst) throws IOException {
+        DEVICE.readBlock(block, dst);
+    }
 
-        fileInode.setLastAccessTime(toIntExact(System.currentTimeMillis() / 1000));
-        DISK.seek(getInodeOffset(fileInode.getInode()));
-        DISK.write(fileInode.toByteArray());
+    // Reads consecutive data blocks, starting at 'first', until 'dst' is full (a single I/O on a cache miss)
+    void readDataBlocks(int first, ByteBuffer dst) throws IOException {
+        DEVICE.readBlocks(first, dst);
+    }
 
-        ArrayList<Integer> directBlocks = fileInode.getDirectBlocks();
-        final int fileSize = fileInode.getSize();
-        final int maxDirectBytes = BLOCK_SIZE * 12;
-        byte directData[] = new byte[(fileSize > maxDirectBytes) ? maxDirectBytes : fileSize];
+    // Writes FileSystem.BLOCK_SIZE bytes of 'src' to data block 'block'
+    void writeDataBlock(int block, ByteBuffer src) throws IOException {
+        DEVICE.writeBlock(block, src);
+    }
 
-        int offset = 0;
-        int len = (directData.length < BLOCK_SIZE) ? directData.length : BLOCK_SIZE;
-        for (int block : directBlocks) {
-            DISK.seek(getDataBlockOffset(block));
-            DISK.read(directData, offset, len);
-
-            // Next block data
-            offset += BLOCK_SIZE;
-            len = (directData.length - offset >= BLOCK_SIZE) ? BLOCK_SIZE : directData.length - offset;
-        }
-
-        // Read the indirect block pointer (if any)
-        int indirectPointer;
-        if ((indirectPointer = fileInode.getIndirectPointer()) != 0) {
-            int remainingBytes = fileSize - maxDirectBytes;
-            byte indirectData[] = new byte[remainingBytes];
-
-            int referenceCount = (int) Math.ceil(fileSize / (double) BLOCK_SIZE) - 12;
-            ArrayList<Integer> references = readIndirectPointer(indirectPointer, referenceCount);
-
-            // Start writing at position 0 of the array, and read up to 4096 bytes per block
-            offset = 0;
-            len = (remainingBytes > BLOCK_SIZE) ? BLOCK_SIZE : remainingBytes;
-            for (int reference : references) {
-                DISK.seek(getDataBlockOffset(reference));
-                DISK.read(indirectData, offset, len);
-
-                // Next block data
-                offset += BLOCK_SIZE;
-                len = (indirectData.length - offset >= BLOCK_SIZE) ? BLOCK_SIZE : indirectData.length - offset;
+    // Gives a block of a file (data or map) back to the allocator. The journal drops any copy it has of it:
+    // the block can hold data of another file before that copy would be written
+    void freeBlock(int block) {
+        METADATA.writeLock().lock();
+        try {
+            synchronized (ALLOCATOR) {
+                ALLOCATOR.free(block);
             }
-            return Bytes.concat(directData, indirectData);
+            if (journal != null) journal.revoke(block);
+            batchBlocks.remove(block);
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    int getFreeBlocks() {
+        synchronized (ALLOCATOR) {
+            return ALLOCATOR.getFreeBlocks();
         }
-        return directData;
     }
 
     public boolean append(String fileName, String text) throws IOException {
-        byte content[] = text.getBytes();
-        int appendLength = content.length;
-        int inodeNumber;
+        InodeOutputStream out = appendFile(fileName);
+        if (out == null) return false;
+
+        out.write(text.getBytes());
+        out.close();
+        return true;
+    }
+
+    // Called by InodeOutputStream.close() once the data of a new file is on disk: adds its dir_entry to directory
+    // 'dirInode', writes its inode and saves the bitmaps. The file can't be seen by other threads yet, so only
+    // its directory is locked
+    void closeFile(int dirInode, String fileName, Inode inode, long size) throws IOException {
+        update(dirInode, true, () -> {
+            Directory directory = readDirectory(dirInode);
+            PENDING_NAMES.remove(dirInode + "/" + fileName);
+            checkName(directory, fileName);
+            inodeTable.put(inode.getInode(), inode);
+            addDirectoryEntry(directory, inode.getInode(), DirectoryEntry.FILE, fileName);
+            inode.setSize(size);
+            writeInode(inode);
+            writeBitmaps();
+            return null;
+        });
+    }
+
+    // Read-locks the file of an InodeInputStream while it reads from it. Its blocks may belong to another file
+    // once it is removed, so that fails
+    Lock lockFile(Inode inode) throws IOException {
+        Lock lock = LOCKS.read(inode.getInode());
+        if (inode.getDeletionTime() != 0) {
+            lock.unlock();
+            throw new IOException("The file was removed");
+        }
+        return lock;
+    }
 
+    // Called by an append stream of InodeOutputStream: writes 'src' at the end of the file, as one operation.
+    // Fails if the file was removed since the stream was opened (the inode could belong to another file by now)
+    void appendData(Inode inode, ByteBuffer src) throws IOException {
+        int inodeNumber = inode.getInode();
+        update(inodeNumber, true, () -> {
+            if (inodeTable.get(inodeNumber) != inode || inode.getDeletionTime() != 0) {
+                throw new IllegalArgumentException("The file was removed");
+            }
+            return writeAt(inodeNumber, inode.getSize(), src);
+        });
+    }
+
+    // Called by InodeOutputStream when a new file of directory 'dirInode' is dropped: gives back its name, its
+    // blocks (data and map, the map already written) and its inode, which was never saved
+    void dropFile(int dirInode, String fileName, Inode inode, BlockMap map) throws IOException {
+        update(dirInode, true, () -> {
+            PENDING_NAMES.remove(dirInode + "/" + fileName);
+            map.free(this::freeBlock);
+            freeInode(inode);
+            writeBitmaps();
+            return null;
+        });
+    }
+
+    // Reads the file at 'path' starting at byte 'offset' into 'dst', until 'dst' is full or the file ends.
+    // Returns how many bytes were read, -1 if 'offset' is at or past the end of the file
+    public int read(String path, long offset, ByteBuffer dst) throws IOException {
+        return read(resolveFile(path), offset, dst);
+    }
+
+    // Same as read(path, offset, dst) for the file with inode 'inodeNumber'. Only the data blocks in the range
+    // (and the blocks of the map on the way to them) are read, whole blocks in consecutive data blocks with a
+    // single I/O. The access time isn't updated
+    public int read(int inodeNumber, long offset, ByteBuffer dst) throws IOException {
+        Lock lock = LOCKS.read(inodeNumber);
         try {
-            inodeNumber = currentDir.findEntry(fileName).getInode();
-        } catch (NullPointerException npe) {
-            return false;
+            Inode inode = getFileInode(inodeNumber);
+            long size = inode.getSize();
+            if (offset < 0) throw new IllegalArgumentException("The offset can't be negative");
+            if (!dst.hasRemaining()) return 0;
+            if (offset >= size) return -1;
+
+            BlockMap map = BlockMap.of(this, inode);
+            long end = Math.min(size, offset + dst.remaining());
+            long position = offset;
+            while (position < end) {
+                long index = position / BLOCK_SIZE;
+                int blockOffset = (int) (position % BLOCK_SIZE);
+                int count = (int) Math.min(BLOCK_SIZE - blockOffset, end - position);
+                int dataBlock = map.get(index);
+
+                if (count == BLOCK_SIZE) {
+                    // Whole blocks: straight into 'dst', as many as are next to each other
+                    int run = Math.max(1, map.getRun(index, (int) Math.min(Integer.MAX_VALUE / BLOCK_SIZE, (end - position) / BLOCK_SIZE)));
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + run * BLOCK_SIZE);
+                    readDataBlocks(dataBlock, dst);
+                    dst.limit(limit);
+                    count = run * BLOCK_SIZE;
+                } else {
+                    ByteBuffer blockBuffer = SCRATCH.get();
+                    blockBuffer.clear();
+                    readDataBlock(dataBlock, blockBuffer);
+                    dst.put(blockBuffer.array(), blockOffset, count);
+                }
+                position += count;
+            }
+            return (int) (end - offset);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        Inode inode = inodeTable.get(inodeNumber);
-        final ArrayList<Integer> directBlocks = inode.getDirectBlocks();
-        final int fileSize = inode.getSize();
-        int freeBlocks = 12 - directBlocks.size();
-
-        int remainder = fileSize % BLOCK_SIZE;
-        int lastBlockFreeBytes = (remainder == 0) ? 0 : BLOCK_SIZE - remainder;
-        int freeDirectBytes = freeBlocks * BLOCK_SIZE + lastBlockFreeBytes;
-
-        byte direct[];
-        byte indirect[];
-        if (appendLength < freeDirectBytes) {
-            // I don't need the indirect pointer
-            direct = content;
-            indirect = null;
-        } else {
-            direct = (freeDirectBytes > 0) ? Arrays.copyOfRange(content, 0, freeDirectBytes) : null;
-            indirect = (freeDirectBytes > 0) ? Arrays.copyOfRange(content, freeDirectBytes, appendLength) : content;
+    // Writes what is left in 'src' to the file at 'path' starting at byte 'offset'. The file grows if the
+    // range goes past its end; writing past the end leaves zeros in between. Returns how many bytes were written
+    public int write(String path, long offset, ByteBuffer src) throws IOException {
+        return write(resolveFile(path), offset, src);
+    }
+
+    // Same as write(path, offset, src) for the file with inode 'inodeNumber'. Only the data blocks in the
+    // range are written: whole blocks directly, partial ones with a read-modify-write
+    public int write(int inodeNumber, long offset, ByteBuffer src) throws IOException {
+        return update(inodeNumber, true, () -> writeAt(inodeNumber, offset, src));
+    }
+
+    // Body of write(inodeNumber, offset, src), with the file write-locked by the caller
+    private int writeAt(int inodeNumber, long offset, ByteBuffer src) throws IOException {
+        Inode inode = getFileInode(inodeNumber);
+        long size = inode.getSize();
+        int length = src.remaining();
+        long end = offset + length;
+        BlockMap map = BlockMap.of(this, inode);
+        if (offset < 0) throw new IllegalArgumentException("The offset can't be negative");
+        if (end > map.getMaxBlocks() * BLOCK_SIZE) {
+            throw new IllegalArgumentException("The file is too big");
         }
 
-        if (direct != null) {
-            if (lastBlockFreeBytes > 0) {
-                int lastBlock = directBlocks.get(directBlocks.size() - 1);
-                if (direct.length < lastBlockFreeBytes) {
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);
-                    DISK.write(direct);
-                    writeAppendModifiedDate(inode, appendLength);
-                    return true;
+        long oldBlockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long blocksNeeded = (end + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blocksNeeded > oldBlockCount) {
+            growFile(inode, map, oldBlockCount, blocksNeeded);
+        }
+
+        // When writing past the end, the bytes between the old end and 'offset' are written as zeros
+        long position = Math.min(offset, size);
+        ByteBuffer blockBuffer = SCRATCH.get();
+        while (position < end) {
+            long index = position / BLOCK_SIZE;
+            int blockOffset = (int) (position % BLOCK_SIZE);
+            int count = (int) Math.min(BLOCK_SIZE - blockOffset, end - position);
+            int dataBlock = map.get(index);
+            int zeros = (int) Math.max(0, Math.min(offset, position + count) - position);
+
+            if (count < BLOCK_SIZE) {
+                if (index < oldBlockCount) {
+                    blockBuffer.clear();
+                    readDataBlock(dataBlock, blockBuffer);
                 } else {
-                    byte blockFill[] = Arrays.copyOfRange(direct, 0, lastBlockFreeBytes);
-                    direct = Arrays.copyOfRange(direct, lastBlockFreeBytes, direct.length);
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);
-                    DISK.write(blockFill);
+                    // New block: whatever it had before doesn't belong to the file
+                    Arrays.fill(blockBuffer.array(), (byte) 0);
+                }
+            }
+            Arrays.fill(blockBuffer.array(), blockOffset, blockOffset + zeros, (byte) 0);
+            src.get(blockBuffer.array(), blockOffset + zeros, count - zeros);
+            blockBuffer.clear();
+            writeDataBlock(dataBlock, blockBuffer);
+            position += count;
+        }
+
+        if (end > size) inode.setSize(end);
+        inode.setModifiedTime(toIntExact(System.currentTimeMillis() / 1000));
+        writeInode(inode);
+        if (blocksNeeded > oldBlockCount) writeBitmaps();
+        return length;
+    }
+
+    // Adds data blocks to the file, from block 'from' up to 'to' (excluded), in as few contiguous runs as
+    // possible. Each new indirect block goes right before the first block it references, like in writeFile().
+    // Blocks the map needs that weren't counted in advance (extent blocks) are allocated when they show up,
+    // after the data block that needs them. The new blocks go right after the last block of the file when
+    // there is room. If it fails, the inode is left as it was and every block taken is freed
+    private void growFile(Inode inode, BlockMap map, long from, long to) throws IOException {
+        long mapBlocks = map.countMapBlocks(to) - map.countMapBlocks(from);
+        int goal = (from > 0) ? map.get(from - 1) + 1 : 0;
+        ArrayList<Integer> taken = allocateBlocks(toIntExact(to - from + mapBlocks), inode.getInode(), goal);
+        ArrayDeque<Integer> allocated = new ArrayDeque<>(taken);
+        changeMap(inode, taken, () -> {
+            for (long index = from; index < to; index++) {
+                ArrayDeque<Integer> indirect = new ArrayDeque<>();
+                for (long i = map.countMapBlocks(index + 1) - map.countMapBlocks(index); i > 0; i--) {
+                    indirect.add(allocated.poll());
+                }
+                map.set(index, allocated.poll(), () -> indirect.isEmpty() ? takeBlock(inode, taken) : indirect.poll());
+            }
+            map.flush();
+            return null;
+        });
+    }
+
+    // Returns the inode of the regular file at 'path', following a symbolic link if that's what the path points to
+    private int resolveFile(String path) throws IOException {
+        DirectoryEntry entry = findEntry(path);
+        if (entry != null && entry.getType() == DirectoryEntry.SYM_LINK) {
+            entry = findEntry(inodeTable.get(entry.getInode()).getSymLinkUrl());
+        }
+        if (entry == null || entry.getType() == DirectoryEntry.DIRECTORY) {
+            throw new IllegalArgumentException("The system could not find the file");
+        }
+        return entry.getInode();
+    }
+
+    private Inode getFileInode(int inodeNumber) {
+        Inode inode = inodeTable.get(inodeNumber);
+        if (inode == null || inode.getType() != Inode.FILE || inode.getDeletionTime() != 0) {
+            throw new IllegalArgumentException(String.format("Inode %d is not a file", inodeNumber));
+        }
+        return inode;
+    }
+
+    public ArrayList<Integer> readIndirectPointer(int pointer, int referenceCount) throws IOException {
+        ArrayList<Integer> references = new ArrayList<>(referenceCount);
+        int block[] = readPointerBlock(pointer);
+        for (int i = 0; i < referenceCount; i++) {
+            references.add(block[i]);
+        }
+        return references;
+    }
+
+    // Reads every reference of an indirect block at once
+    int[] readPointerBlock(int pointer) throws IOException {
+        int references[] = new int[BLOCK_SIZE / 4];
+        ByteBuffer blockBuffer = SCRATCH.get();
+        blockBuffer.clear();
+        readMetadataBlock(pointer, blockBuffer);
+        blockBuffer.clear();
+        blockBuffer.asIntBuffer().get(references);
+        return references;
+    }
+
+    // Writes the whole indirect block. The unused references are zeroed, that's where the block map stops
+    void writePointerBlock(int pointer, int references[]) throws IOException {
+        ByteBuffer blockBuffer = SCRATCH.get();
+        blockBuffer.clear();
+        blockBuffer.asIntBuffer().put(references);
+        METADATA.writeLock().lock();
+        try {
+            writeMetadataBlock(pointer, blockBuffer);
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Takes a free inode for a new file, link or directory ('directory') created in the directory with inode
+    // 'parentInode' (0 for the root directory itself), in the group chosen by chooseGroup()
+    private int allocateInode(int parentInode, boolean directory) {
+        synchronized (ALLOCATOR) {
+            int first = chooseGroup(parentInode, directory);
+            for (int i = 0; i < GROUP_COUNT; i++) {
+                int group = (first + i) % GROUP_COUNT;
+                if (freeInodes[group] == 0) continue;
+
+                int inodeNumber = INODE_BITMAP.nextClearBit(group * INODES_PER_GROUP + 1);
+                INODE_BITMAP.setBit(inodeNumber);
+                freeInodes[group]--;
+                if (directory) {
+                    superblock.setDirectories(group, superblock.getDirectories(group) + 1);
+                    superblockChanged = true;
                 }
-                remainder = 0;
+                return inodeNumber;
             }
+        }
+        throw new IllegalArgumentException("There are no free inodes left");
+    }
 
-            byte directBlockGroups[][] = BitUtils.splitBytes(direct, BLOCK_SIZE);
-            int blocks[] = new int[directBlockGroups.length];
-            for (int i = 0; i < directBlockGroups.length; i++) {
-                byte[] group = directBlockGroups[i];
-                int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-                blocks[i] = block;
-                DISK.seek(getDataBlockOffset(block));
-                DISK.write(group);
+    // Gives the inode back (the caller writes it)
+    private void freeInode(Inode inode) {
+        int group = getInodeGroup(inode.getInode());
+        synchronized (ALLOCATOR) {
+            INODE_BITMAP.clearBit(inode.getInode());
+            freeInodes[group]++;
+            if (inode.getType() == Inode.DIRECTORY) {
+                superblock.setDirectories(group, superblock.getDirectories(group) - 1);
+                superblockChanged = true;
             }
-            inode.addBlocks(blocks);
         }
+    }
 
-        if (indirect != null) {
-            ArrayList<Integer> references = new ArrayList<>();
-            int indirectPointer = inode.getIndirectPointer();
-            if (indirectPointer == 0) {
-                // If it gets here is because the direct blocks have exactly 49152 bytes. Remainder should be 0
-                indirectPointer = BitUtils.nextClearBitThenSet(DATA_BITMAP);
+    // Files and links go to the group of their directory, so the directory, their inode and their data
+    // are close to each other. Directories are spread like the Orlov allocator does: the ones created in the
+    // root go to the group with the fewest directories among those with at least the average free inodes and
+    // blocks (they usually start unrelated trees), the others stay in the group of their parent unless it is
+    // running out of room or already has too many directories
+    private int chooseGroup(int parentInode, boolean directory) {
+        if (parentInode == 0) return 0;
+        int parentGroup = getInodeGroup(parentInode);
+        if (!directory) return parentGroup;
+
+        int totalFreeInodes = 0;
+        int totalDirectories = 0;
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            totalFreeInodes += freeInodes[group];
+            totalDirectories += superblock.getDirectories(group);
+        }
+        int averageFreeInodes = totalFreeInodes / GROUP_COUNT;
+        int averageFreeBlocks = ALLOCATOR.getFreeBlocks() / GROUP_COUNT;
+
+        if (parentInode == 1) {
+            int best = -1;
+            for (int group = 0; group < GROUP_COUNT; group++) {
+                if (freeInodes[group] < averageFreeInodes || getFreeBlocks(group) < averageFreeBlocks) continue;
+                if (best < 0 || superblock.getDirectories(group) < superblock.getDirectories(best)) best = group;
             }
-            if (remainder > 0) {
-                int referenceCount = (int) Math.ceil(fileSize / (double) BLOCK_SIZE) - 12;
-                references = readIndirectPointer(indirectPointer, referenceCount);
-                int lastBlock = references.get(references.size() - 1);
-                if (indirect.length < lastBlockFreeBytes) {
-                    DISK.seek(getDataBlockOffset(lastBlock) + remainder);
-                    DISK.write(indirect);
-                    writeAppendModifiedDate(inode, appendLength);
-                    return true;
-                } else {
-                    byte blockFill[] = Arrays.copyOfRange(indirect, 0, lastBlockFreeBytes);
-                    indirect = Arrays.copyOfRange(indirect, lastBlockFreeBytes, appendLength);
-                    DISK.seek(getDataBlockOffset(lastBlock));
-                    DISK.write(blockFill);
+            if (best >= 0) return best;
+        } else {
+            int maxDirectories = totalDirectories / GROUP_COUNT + INODES_PER_GROUP / 16;
+            for (int i = 0; i < GROUP_COUNT; i++) {
+                int group = (parentGroup + i) % GROUP_COUNT;
+                if (freeInodes[group] >= Math.max(1, averageFreeInodes / 4) && getFreeBlocks(group) >= averageFreeBlocks / 4
+                        && superblock.getDirectories(group) < maxDirectories) {
+                    return group;
                 }
             }
+        }
+        return parentGroup;
+    }
 
-            byte indirectBlockGroups[][] = BitUtils.splitBytes(indirect, BLOCK_SIZE);
-            for (byte[] group : indirectBlockGroups) {
-                int block = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-                references.add(block);
-                DISK.seek(getDataBlockOffset(block));
-                DISK.write(group);
+    private void countFreeInodes() {
+        freeInodes = new int[GROUP_COUNT];
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            for (int inode = group * INODES_PER_GROUP + 1; inode <= (group + 1) * INODES_PER_GROUP; inode++) {
+                if (!INODE_BITMAP.isSet(inode)) freeInodes[group]++;
             }
+        }
+    }
+
+    // Allocates a data block for inode 'inodeNumber': at 'goal' if it is free (0 for no goal), else as close as
+    // possible to it in the group of the inode
+    private int allocateBlock(int inodeNumber, int goal) {
+        return allocateBlocks(1, inodeNumber, goal).get(0);
+    }
 
-            // Write the (indirect) block references to disk
-            DISK.seek(getDataBlockOffset(indirectPointer));
-            for (int reference : references) {
-                DISK.write(Ints.toByteArray(reference));
+    // Allocates 'count' data blocks for inode 'inodeNumber', in as few contiguous runs as the allocator can find.
+    // They come from the group of the inode, starting at 'goal' (0 for the first data block of the group) or
+    // as close after it as possible, when the group has a free extent that can hold all of them
+    ArrayList<Integer> allocateBlocks(int count, int inodeNumber, int goal) {
+        int group = getInodeGroup(inodeNumber);
+        int first = getGroupStart(group) + GROUP_METADATA_BLOCKS;
+        ArrayList<Integer> blocks = new ArrayList<>(count);
+        ArrayList<Extent> extents;
+        synchronized (ALLOCATOR) {
+            extents = ALLOCATOR.allocate(count, goal, first, getGroupEnd(group) - 1);
+        }
+        for (Extent extent : extents) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                blocks.add(block);
             }
         }
-        writeAppendModifiedDate(inode, appendLength);
-        return true;
+        return blocks;
     }
 
-    private void writeAppendModifiedDate(Inode inode, int appendLength) throws IOException {
-        inode.setSize(inode.getSize() + appendLength);
-        inode.setModifiedTime(toIntExact(System.currentTimeMillis() / 1000));
-        DISK.seek(getInodeOffset(inode.getInode()));
-        DISK.write(inode.toByteArray());
-        writeBitmaps();
+    // Makes the files created from now on map their blocks with extents (or with block pointers). Files that
+    // already exist keep the format they were created with. Set before format() it's saved as the default of the volume
+    public void setExtentFiles(boolean extents) {
+        extentFiles = extents;
     }
 
-    public ArrayList<Integer> readIndirectPointer(int pointer, int referenceCount) throws IOException {
-        ArrayList<Integer> references = new ArrayList<>();
-        byte blockBytes[] = new byte[4];
-        DISK.seek(getDataBlockOffset(pointer));
-        while (referenceCount != 0) {
-            DISK.read(blockBytes);
-            int block = Ints.fromByteArray(blockBytes);
-            references.add(block);
-            referenceCount--;
+    public void setAllocationPolicy(BlockAllocator.Policy policy) {
+        synchronized (ALLOCATOR) {
+            ALLOCATOR.setPolicy(policy);
         }
-        return references;
     }
 
+    // Current directory of the calling thread. It's a copy taken with the directory locked, so it can be walked
+    // while other threads change the directory
     public Directory getCurrentDirectory() {
-        return currentDir;
+        int dirInode = currentDir.get();
+        Lock lock = LOCKS.read(dirInode);
+        try {
+            return readDirectory(dirInode).copy();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setCurrentDirectory(Directory directory) {
-        this.currentDir = directory;
+        currentDir.set(directory.getInode());
+    }
+
+    // Inode of the current directory of the calling thread, to give it back with setCurrentDirectory(int)
+    int getCurrentDirectoryInode() {
+        return currentDir.get();
+    }
+
+    void setCurrentDirectory(int dirInode) {
+        currentDir.set(dirInode);
+    }
+
+    // Buffer cache of the volume, with its hit/miss counters
+    public BufferCache getCache() {
+        return DEVICE;
     }
 
     public InodeTable getInodeTable() {
@@ -620,57 +1366,273 @@ public class FileSystem {
     }
 
     public Directory getRoot() throws IOException {
-        Directory root = new Directory();
-        Inode rootInode = inodeTable.get(1);
-        for (int block : rootInode.getDirectBlocks()) {
-            root.add(readDirectoryBlock(block));
+        return readDirectory(1);
+    }
+
+    // Returns the directory of inode 'inodeNumber', reading and parsing its blocks only if it isn't in the directory cache.
+    // It's the cached instance, changed in place by other threads: walk it with the directory locked
+    public Directory readDirectory(int inodeNumber) throws IOException {
+        Lock lock = LOCKS.read(inodeNumber);
+        try {
+            Directory directory = DIRECTORIES.get(inodeNumber);
+            if (directory == null) {
+                directory = new Directory();
+                Inode inode = inodeTable.get(inodeNumber);
+
+                // Go through each block and read their dir_entries. After the direct pointers they are mapped
+                // through indirect blocks, like the blocks of a file
+                BlockMap map = BlockMap.of(this, inode);
+                int block;
+                for (long index = 0; index < map.getMaxBlocks() && (block = map.get(index)) != 0; index++) {
+                    directory.add(readDirectoryBlock(block));
+                }
+                DIRECTORIES.put(inodeNumber, directory);
+            }
+            return directory;
+        } finally {
+            lock.unlock();
         }
-        return root;
     }
 
-    // Add a new directory entry to the current directory
-    private void addDirectoryEntry(int inodeNumber, byte type, String name) throws IOException {
+    public DirectoryCache getDirectoryCache() {
+        return DIRECTORIES;
+    }
+
+    public PathCache getPathCache() {
+        return PATHS;
+    }
+
+    // Add a new directory entry to 'directory' (write-locked by the caller). The change is made on that
+    // instance, which also becomes the cached one (the cache could have dropped it and read it again)
+    private void addDirectoryEntry(Directory directory, int inodeNumber, byte type, String name) throws IOException {
+        DIRECTORIES.put(directory.getInode(), directory);
+        PATHS.invalidate(directory.getInode());
+
         // Only the last block is writable, the previous ones should be full of dir_entries
-        DirectoryBlock lastBlock = currentDir.getLastBlock();
+        DirectoryBlock lastBlock = directory.getLastBlock();
 
-        // Add the new directory as a dir_entry in the current one. Check if it fits in the last used block
+        // Add the new directory as a dir_entry in the directory. Check if it fits in the last used block
         DirectoryEntry entry = new DirectoryEntry(inodeNumber, type, name);
-        if (lastBlock.getRemainingLength() >= entry.getIdealLen()) {
-            DirectoryEntry prevEntry = lastBlock.getLastEntry();
-            int prevEntryOffset = lastBlock.getLength() - prevEntry.getIdealLen();
-            lastBlock.addEntry(entry);
+        if (lastBlock.isEmpty()) {
+            // All its dir_entries were removed
+            directory.addEntry(lastBlock, entry);
+            writeDirectoryBlock(lastBlock);
+        } else if (lastBlock.getRemainingLength() >= entry.getIdealLen()) {
+            directory.addEntry(lastBlock, entry);
 
             // Write the previous dir_entry (because its rec_len was modified in addEntry()) and the new dir_entry to disk
-            DISK.seek(getDataBlockOffset(lastBlock.getBlock()) + prevEntryOffset);
-            DISK.write(prevEntry.toByteArray());
-            DISK.write(entry.toByteArray());
+            writeDirectoryEntries(lastBlock, lastBlock.size() - 2, lastBlock.size());
         } else {
-            // The new dir_entry doesn't fit in the block, create a new one
-            int newBlock = BitUtils.nextClearBitThenSet(DATA_BITMAP);
-            Inode inode = inodeTable.get(currentDir.getInode());
-            inode.addBlocks(newBlock);
+            // The new dir_entry doesn't fit in the block, create a new one (right after the last one if it's free)
+            Inode inode = inodeTable.get(directory.getInode());
+            int newBlock = allocateBlock(inode.getInode(), lastBlock.getBlock() + 1);
+            BlockMap map = BlockMap.of(this, inode);
+            ArrayList<Integer> taken = new ArrayList<>(Collections.singletonList(newBlock));
+            changeMap(inode, taken, () -> {
+                map.set(directory.size(), newBlock, () -> takeBlock(inode, taken));
+                map.flush();
+                return null;
+            });
 
             DirectoryBlock block = new DirectoryBlock(newBlock);
             block.addEntry(entry);
-            currentDir.add(block);
+            directory.add(block);
 
-            // Write the current directory inode to disk (to update it)
-            DISK.seek(getInodeOffset(inode.getInode()));
-            DISK.write(inode.toByteArray());
+            // Write the directory inode to disk (to update it)
+            writeInode(inode);
 
             // Write the new dir_entry to disk, in the newly assigned block
-            DISK.seek(getDataBlockOffset(newBlock));
-            DISK.write(entry.toByteArray());
+            writeDirectoryBlock(block);
         }
     }
 
-    // Calculate the data offset of the given data block number
-    private int getDataBlockOffset(int blockNumber) {
-        return DATA_OFFSET + (blockNumber - 1) * BLOCK_SIZE;
+    // Throws if 'name' is taken in 'directory' (locked by the caller), by a dir_entry or by a file being created
+    private void checkName(Directory directory, String name) {
+        if (directory.findEntry(name) != null || PENDING_NAMES.contains(directory.getInode() + "/" + name)) {
+            throw new IllegalArgumentException("The is already a file with the same name");
+        }
+    }
+
+    // Runs 'change', which maps blocks of 'inode' that were just allocated (listed in 'taken', along with the
+    // ones the map allocates on the way). If it fails the inode gets its pointers back and those blocks are freed
+    private void changeMap(Inode inode, ArrayList<Integer> taken, Update<Void> change) throws IOException {
+        int pointers[] = inode.getPointers();
+        try {
+            change.run();
+        } catch (IOException | RuntimeException e) {
+            inode.setPointers(pointers);
+            for (int block : taken) freeBlock(block);
+            throw e;
+        }
+    }
+
+    // Allocates a block for the map of 'inode' and adds it to 'taken'
+    private int takeBlock(Inode inode, ArrayList<Integer> taken) {
+        int block = allocateBlock(inode.getInode(), 0);
+        taken.add(block);
+        return block;
+    }
+
+    // Encodes the inode straight into the block(s) of the inode table that hold it
+    private void writeInode(Inode inode) throws IOException {
+        int position = getInodeOffset(inode.getInode());
+        int first = position / BLOCK_SIZE;
+        int count = (position + Inode.INODE_SIZE - 1) / BLOCK_SIZE - first + 1;
+
+        // Other inodes of the same block can be written at the same time
+        METADATA.writeLock().lock();
+        try {
+            inodeBuffer.clear();
+            inodeBuffer.limit(count * BLOCK_SIZE);
+            for (int i = 0; i < count; i++) {
+                readMetadataBlock(first + i, inodeBuffer);
+            }
+            inode.encode(inodeBuffer, position - first * BLOCK_SIZE);
+            for (int i = 0; i < count; i++) {
+                inodeBuffer.limit((i + 1) * BLOCK_SIZE);
+                inodeBuffer.position(i * BLOCK_SIZE);
+                writeMetadataBlock(first + i, inodeBuffer);
+            }
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Writes a whole directory block: its dir_entries and zeros after them
+    private void writeDirectoryBlock(DirectoryBlock block) throws IOException {
+        ByteBuffer blockBuffer = SCRATCH.get();
+        Arrays.fill(blockBuffer.array(), (byte) 0);
+        int offset = 0;
+        for (DirectoryEntry entry : block) {
+            entry.encode(blockBuffer, offset);
+            offset += entry.getRecLen();
+        }
+        blockBuffer.clear();
+        METADATA.writeLock().lock();
+        try {
+            writeMetadataBlock(block.getBlock(), blockBuffer);
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Writes the dir_entries 'from' (included) to 'to' (excluded) of the block, encoding them in place
+    private void writeDirectoryEntries(DirectoryBlock block, int from, int to) throws IOException {
+        int blockNumber = block.getBlock();
+        ByteBuffer blockBuffer = SCRATCH.get();
+        METADATA.writeLock().lock();
+        try {
+            blockBuffer.clear();
+            readMetadataBlock(blockNumber, blockBuffer);
+            int offset = block.getOffset(from);
+            for (int i = from; i < to; i++) {
+                DirectoryEntry entry = block.get(i);
+                entry.encode(blockBuffer, offset);
+                offset += entry.getRecLen();
+            }
+            blockBuffer.clear();
+            writeMetadataBlock(blockNumber, blockBuffer);
+        } finally {
+            METADATA.writeLock().unlock();
+        }
+    }
+
+    // Writes a metadata block: to the running transaction with journaling, else in place (at the end of the
+    // batch if there is one). The caller holds the write lock of METADATA
+    private void writeMetadataBlock(int block, ByteBuffer src) throws IOException {
+        if (isJournaling()) {
+            journal.write(block, src);
+        } else if (batchDepth > 0) {
+            byte copy[] = batchBlocks.get(block);
+            if (copy == null) {
+                copy = new byte[BLOCK_SIZE];
+                batchBlocks.put(block, copy);
+            }
+            src.get(copy);
+        } else {
+            DEVICE.writeBlock(block, src);
+        }
+    }
+
+    // Reads a metadata block, from the journal or the batch if they have a copy newer than the one in place
+    private void readMetadataBlock(int block, ByteBuffer dst) throws IOException {
+        METADATA.readLock().lock();
+        try {
+            if (journal != null && journal.read(block, dst)) return;
+            byte copy[] = batchBlocks.get(block);
+            if (copy != null) {
+                dst.put(copy);
+            } else {
+                DEVICE.readBlock(block, dst);
+            }
+        } finally {
+            METADATA.readLock().unlock();
+        }
+    }
+
+    // Writes zeros to 'count' consecutive blocks, starting at block 'first'
+    private void zeroBlocks(int first, int count) throws IOException {
+        final ByteBuffer ZEROS = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int block = first; block < first + count; block++) {
+            ZEROS.clear();
+            DEVICE.writeBlock(block, ZEROS);
+        }
+    }
+
+    // Reads data.length bytes of the volume starting at byte 'position'
+    private void read(int position, byte data[]) throws IOException {
+        read(position, data, 0, data.length);
+    }
+
+    // Reads 'len' bytes of the volume starting at byte 'position' into data[off]. Every block
+    // touched by the range is read once from the device
+    private void read(int position, byte data[], int off, int len) throws IOException {
+        while (len > 0) {
+            int block = position / BLOCK_SIZE;
+            int blockOffset = position % BLOCK_SIZE;
+            if (blockOffset == 0 && len >= BLOCK_SIZE) {
+                // Whole blocks go straight into data[] with a single device call
+                int count = (len / BLOCK_SIZE) * BLOCK_SIZE;
+                DEVICE.readBlocks(block, ByteBuffer.wrap(data, off, count));
+                position += count;
+                off += count;
+                len -= count;
+                continue;
+            }
+            int count = Math.min(len, BLOCK_SIZE - blockOffset);
+            ByteBuffer blockBuffer = SCRATCH.get();
+            blockBuffer.clear();
+            DEVICE.readBlock(block, blockBuffer);
+            System.arraycopy(blockBuffer.array(), blockOffset, data, off, count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    // First block of 'group' (its data bitmap)
+    private int getGroupStart(int group) {
+        return 1 + group * BLOCKS_PER_GROUP;
+    }
+
+    // First block after 'group'
+    private int getGroupEnd(int group) {
+        return Math.min(getGroupStart(group + 1), DEVICE.getBlockCount());
+    }
+
+    private int getInodeGroup(int inode) {
+        return (inode - 1) / INODES_PER_GROUP;
+    }
+
+    // Free data blocks of 'group'
+    private int getFreeBlocks(int group) {
+        return ALLOCATOR.getFreeBlocks(getGroupStart(group), getGroupEnd(group) - 1);
     }
 
-    // Calculate the inode offset of the given inode index
+    // Calculate the inode offset of the given inode index: it's in the inode table of its group
     private int getInodeOffset(int inode) {
-        return INODE_TABLE_OFFSET + (inode - 1) * 80;
+        int group = getInodeGroup(inode);
+        int tableStart = (getGroupStart(group) + INODE_TABLE_OFFSET) * BLOCK_SIZE;
+        return tableStart + (inode - 1) % INODES_PER_GROUP * Inode.INODE_SIZE;
     }
-}
\ No newline at end of file
+}
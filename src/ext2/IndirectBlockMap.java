@@ -0,0 +1,219 @@
+package ext2;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Maps the blocks of a file (0, 1, 2...) to data blocks through the 12 direct pointers of its inode and its
+// single, double and triple indirect blocks. Indirect blocks are read whole the first time they are needed
+// and kept while the map is used, so going through a file in order reads each indirect block only once.
+// Changed indirect blocks are written by flush()
+public class IndirectBlockMap extends BlockMap {
+
+    public static final int DIRECT_BLOCKS = 12;
+    // References that fit in an indirect block
+    public static final int REFERENCES = BLOCK_SIZE / 4;
+    // Blocks of a file reachable through the direct pointers and the single, double and triple indirect blocks
+    public static final long MAX_BLOCKS = DIRECT_BLOCKS + REFERENCES + (long) REFERENCES * REFERENCES
+            + (long) REFERENCES * REFERENCES * REFERENCES;
+
+    // Indirect blocks kept in memory (a path from the triple indirect block down only needs 3)
+    private static final int CACHED_BLOCKS = 8;
+
+    private final FileSystem FILE_SYSTEM;
+    private final Inode INODE;
+
+    // Indirect block number -> its references, from the least to the most recently used
+    private final LinkedHashMap<Integer, int[]> indirectBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashSet<Integer> dirtyBlocks = new HashSet<>();
+
+    IndirectBlockMap(FileSystem fileSystem, Inode inode) {
+        FILE_SYSTEM = fileSystem;
+        INODE = inode;
+    }
+
+    @Override
+    public int get(long index) throws IOException {
+        if (index < DIRECT_BLOCKS) return INODE.getDirectPointer((int) index);
+
+        long rest = index - DIRECT_BLOCKS;
+        for (int level = 1; level <= 3; level++) {
+            long span = span(level);
+            if (rest < span) {
+                int pointer = getIndirectPointer(level);
+                while (level > 0 && pointer != 0) {
+                    long below = span(level - 1);
+                    pointer = load(pointer)[(int) (rest / below)];
+                    rest %= below;
+                    level--;
+                }
+                return pointer;
+            }
+            rest -= span;
+        }
+        throw new IllegalArgumentException(String.format("Block %d is past the biggest file size", index));
+    }
+
+    // The indirect blocks that are missing on the way are taken from 'newBlock', so they come right before
+    // the first block they reference
+    @Override
+    public void set(long index, int block, IntSupplier newBlock) throws IOException {
+        if (index < DIRECT_BLOCKS) {
+            INODE.setDirectPointer((int) index, block);
+            return;
+        }
+
+        long rest = index - DIRECT_BLOCKS;
+        int level = 1;
+        while (rest >= span(level)) {
+            rest -= span(level);
+            if (++level > 3) {
+                throw new IllegalArgumentException(String.format("Block %d is past the biggest file size", index));
+            }
+        }
+
+        int pointer = getIndirectPointer(level);
+        if (pointer == 0) {
+            pointer = create(newBlock.getAsInt());
+            setIndirectPointer(level, pointer);
+        }
+        while (level > 1) {
+            int references[] = load(pointer);
+            long below = span(level - 1);
+            int slot = (int) (rest / below);
+            if (references[slot] == 0) {
+                references[slot] = create(newBlock.getAsInt());
+                dirtyBlocks.add(pointer);
+            }
+            pointer = references[slot];
+            rest %= below;
+            level--;
+        }
+        load(pointer)[(int) rest] = block;
+        dirtyBlocks.add(pointer);
+    }
+
+    // Writes the indirect blocks that changed
+    @Override
+    public void flush() throws IOException {
+        for (int block : dirtyBlocks) {
+            FILE_SYSTEM.writePointerBlock(block, indirectBlocks.get(block));
+        }
+        dirtyBlocks.clear();
+    }
+
+    @Override
+    public void free(IntConsumer free) throws IOException {
+        for (int i = 0; i < DIRECT_BLOCKS; i++) {
+            if (INODE.getDirectPointer(i) != 0) free.accept(INODE.getDirectPointer(i));
+        }
+        for (int level = 1; level <= 3; level++) {
+            if (getIndirectPointer(level) != 0) free(getIndirectPointer(level), level, free);
+        }
+        indirectBlocks.clear();
+        dirtyBlocks.clear();
+    }
+
+    @Override
+    public long getMaxBlocks() {
+        return MAX_BLOCKS;
+    }
+
+    @Override
+    public long countMapBlocks(long blockCount) {
+        return countIndirectBlocks(blockCount);
+    }
+
+    // Returns how many indirect blocks a file of 'blockCount' blocks uses
+    public static long countIndirectBlocks(long blockCount) {
+        long rest = blockCount - DIRECT_BLOCKS;
+        long count = 0;
+        for (int level = 1; level <= 3 && rest > 0; level++) {
+            long blocks = Math.min(rest, span(level));
+            // One block at the top, plus the ones needed at each level below it
+            for (int below = level - 1; below >= 0; below--) {
+                count += (blocks + span(below) * REFERENCES - 1) / (span(below) * REFERENCES);
+            }
+            rest -= blocks;
+        }
+        return count;
+    }
+
+    private void free(int pointer, int level, IntConsumer free) throws IOException {
+        for (int reference : FILE_SYSTEM.readPointerBlock(pointer)) {
+            if (reference == 0) continue;
+            if (level > 1) {
+                free(reference, level - 1, free);
+            } else {
+                free.accept(reference);
+            }
+        }
+        free.accept(pointer);
+    }
+
+    // Blocks reachable through an indirect block of 'level' (1 for single indirect, 0 for a data block)
+    private static long span(int level) {
+        long span = 1;
+        for (int i = 0; i < level; i++) span *= REFERENCES;
+        return span;
+    }
+
+    private int getIndirectPointer(int level) {
+        switch (level) {
+            case 1:
+                return INODE.getIndirectPointer();
+            case 2:
+                return INODE.getDoubleIndirectPointer();
+            default:
+                return INODE.getTripleIndirectPointer();
+        }
+    }
+
+    private void setIndirectPointer(int level, int pointer) {
+        switch (level) {
+            case 1:
+                INODE.setIndirectPointer(pointer);
+                break;
+            case 2:
+                INODE.setDoubleIndirectPointer(pointer);
+                break;
+            default:
+                INODE.setTripleIndirectPointer(pointer);
+        }
+    }
+
+    // Returns the references of indirect block 'pointer', reading it if it isn't in memory
+    private int[] load(int pointer) throws IOException {
+        int references[] = indirectBlocks.get(pointer);
+        if (references == null) {
+            references = FILE_SYSTEM.readPointerBlock(pointer);
+            keep(pointer, references);
+        }
+        return references;
+    }
+
+    // A new indirect block: no references yet, and it has to be written
+    private int create(int pointer) throws IOException {
+        keep(pointer, new int[REFERENCES]);
+        dirtyBlocks.add(pointer);
+        return pointer;
+    }
+
+    private void keep(int pointer, int references[]) throws IOException {
+        Iterator<Map.Entry<Integer, int[]>> eldest = indirectBlocks.entrySet().iterator();
+        while (indirectBlocks.size() >= CACHED_BLOCKS && eldest.hasNext()) {
+            Map.Entry<Integer, int[]> entry = eldest.next();
+            if (dirtyBlocks.remove(entry.getKey())) {
+                FILE_SYSTEM.writePointerBlock(entry.getKey(), entry.getValue());
+            }
+            eldest.remove();
+        }
+        indirectBlocks.put(pointer, references);
+    }
+}
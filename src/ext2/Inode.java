@@ -1,10 +1,6 @@
 package ext2;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Ints;
-
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -15,10 +11,14 @@ public class Inode {
     public static final int DIRECTORY = 1;
     public static final int FILE = 2;
     public static final int SYM_LINK = 3;
+    // Bytes used by an inode in the inode table (32 inodes per block). Bytes 96 to 127 are not used yet
+    public static final int INODE_SIZE = 128;
+    // Flags: the blocks of the file are mapped with extents (see ExtentMap) instead of block pointers
+    public static final int EXTENTS = 1;
     // 4 bytes
     private int type;
-    // 4 bytes
-    private int size;
+    // 8 bytes (the low 4 bytes go at offset 4 and the high 4 bytes at offset 88)
+    private long size;
     // 4 bytes
     private int creationTime;
     // 4 bytes
@@ -29,10 +29,14 @@ public class Inode {
     private int deletionTime;
     // 4 bytes
     private int linkCount;
-    // 48 bytes (12 x 4 bytes)
+    // 48 bytes (12 x 4 bytes), or 4 extents of 12 bytes when the EXTENTS flag is set
     private final int[] directPointers = new int[12];
-    // 4 bytes
+    // 4 bytes each
     private int indirectPointer;
+    private int doubleIndirectPointer;
+    private int tripleIndirectPointer;
+    // 4 bytes (offset 92)
+    private int flags;
     // Inode number
     private int inode;
     // Sym link url
@@ -45,7 +49,7 @@ public class Inode {
         linkCount = 1;
     }
 
-    public Inode(int inode, int type, int size) {
+    public Inode(int inode, int type, long size) {
         this(inode, type);
         this.size = size;
     }
@@ -69,84 +73,78 @@ public class Inode {
         }
     }
 
-    // Reads 80 bytes from the byte array[] and creates a new instance of Inode from it
+    // Reads INODE_SIZE bytes from the byte array[] and creates a new instance of Inode from it
     public static Inode fromByteArray(byte array[], int inodeNumber) {
-        // Split 80 byte array into subarrays
-        final byte TYPE[] = Arrays.copyOfRange(array, 0, 4);
+        return decode(ByteBuffer.wrap(array), 0, inodeNumber);
+    }
 
+    // Creates a new instance of Inode from the INODE_SIZE bytes found at 'offset' in the buffer. The fields are read
+    // in place (the buffer position is not used nor modified). Returns null if there is no inode there
+    public static Inode decode(ByteBuffer buffer, int offset, int inodeNumber) {
         // Before we continue, check if the type is 0 (no inode uses type 0. If it is 0 it means there is no inode)
-        int type = Ints.fromByteArray(TYPE);
+        int type = buffer.getInt(offset);
         if (type == 0) return null;
 
-        final byte SIZE[] = Arrays.copyOfRange(array, 4, 8);
-        final byte CR_TIME[] = Arrays.copyOfRange(array, 8, 12);
-        final byte M_TIME[] = Arrays.copyOfRange(array, 12, 16);
-        final byte A_TIME[] = Arrays.copyOfRange(array, 16, 20);
-        final byte DEL_TIME[] = Arrays.copyOfRange(array, 20, 24);
-        final byte LINKS[] = Arrays.copyOfRange(array, 24, 28);
-        final byte POINTERS[] = Arrays.copyOfRange(array, 28, 76);
-        final byte IND_POINTER[] = Arrays.copyOfRange(array, 76, 80);
-
-        // Build new inode instance from previous arrays
-        int size = Ints.fromByteArray(SIZE);
-        int crTime = Ints.fromByteArray(CR_TIME);
-        int modTime = Ints.fromByteArray(M_TIME);
-        int accTime = Ints.fromByteArray(A_TIME);
-        int delTime = Ints.fromByteArray(DEL_TIME);
-        int links = Ints.fromByteArray(LINKS);
-        int indPointer = Ints.fromByteArray(IND_POINTER);
-        String url = "";
-        int pointers[] = null;
-
-        if (type == SYM_LINK) {
-            url = new String(POINTERS);
-        } else {
-            // Create pointers array
-            IntBuffer intBuffer = ByteBuffer.wrap(POINTERS).asIntBuffer();
-            pointers = new int[intBuffer.remaining()];
-            intBuffer.get(pointers);
-        }
-
-        // Create instance and return it
+        long size = Integer.toUnsignedLong(buffer.getInt(offset + 4)) | ((long) buffer.getInt(offset + 88) << 32);
         Inode inode = new Inode(inodeNumber, type, size);
-        inode.setCreationTime(crTime);
-        inode.setModifiedTime(modTime);
-        inode.setLastAccessTime(accTime);
-        inode.setDeletionTime(delTime);
-        inode.setLinkCount(links);
+        inode.creationTime = buffer.getInt(offset + 8);
+        inode.modifiedTime = buffer.getInt(offset + 12);
+        inode.lastAccessTime = buffer.getInt(offset + 16);
+        inode.deletionTime = buffer.getInt(offset + 20);
+        inode.linkCount = buffer.getInt(offset + 24);
         if (type == SYM_LINK) {
-            inode.setSymLinkUrl(url);
+            // The url takes the place of the pointers and ends at the first null terminator
+            byte url[] = new byte[48];
+            int length = 0;
+            while (length < url.length && (url[length] = buffer.get(offset + 28 + length)) != '\0') {
+                length++;
+            }
+            inode.setSymLinkUrl(new String(url, 0, length));
         } else {
-            inode.addBlocks(pointers);
+            for (int i = 0; i < 12; i++) {
+                inode.directPointers[i] = buffer.getInt(offset + 28 + i * 4);
+            }
         }
-        inode.setIndirectPointer(indPointer);
+        inode.indirectPointer = buffer.getInt(offset + 76);
+        inode.doubleIndirectPointer = buffer.getInt(offset + 80);
+        inode.tripleIndirectPointer = buffer.getInt(offset + 84);
+        inode.flags = buffer.getInt(offset + 92);
         return inode;
     }
 
     public byte[] toByteArray() {
-        final byte TYPE[] = BitUtils.toByteArray(type);
-        final byte SIZE[] = BitUtils.toByteArray(size);
-        final byte CR_TIME[] = BitUtils.toByteArray(creationTime);
-        final byte M_TIME[] = BitUtils.toByteArray(modifiedTime);
-        final byte A_TIME[] = BitUtils.toByteArray(lastAccessTime);
-        final byte DEL_TIME[] = BitUtils.toByteArray(deletionTime);
-        final byte LINKS[] = BitUtils.toByteArray(linkCount);
-
-        byte urlBytes[] = new byte[48];
+        byte array[] = new byte[INODE_SIZE];
+        encode(ByteBuffer.wrap(array), 0);
+        return array;
+    }
+
+    // Writes the INODE_SIZE bytes of this inode at 'offset' in the buffer (the buffer position is not used nor modified)
+    public void encode(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, type);
+        buffer.putInt(offset + 4, (int) size);
+        buffer.putInt(offset + 8, creationTime);
+        buffer.putInt(offset + 12, modifiedTime);
+        buffer.putInt(offset + 16, lastAccessTime);
+        buffer.putInt(offset + 20, deletionTime);
+        buffer.putInt(offset + 24, linkCount);
         if (type == SYM_LINK) {
-            byte[] bytes = url.getBytes();
-            for (int i = 0; i < urlBytes.length; i++) {
-                if (i > bytes.length - 1) {
-                    urlBytes[i] = '\0';
-                } else {
-                    urlBytes[i] = bytes[i];
-                }
+            byte bytes[] = url.getBytes();
+            for (int i = 0; i < 48; i++) {
+                buffer.put(offset + 28 + i, (i < bytes.length) ? bytes[i] : (byte) '\0');
+            }
+        } else {
+            for (int i = 0; i < 12; i++) {
+                buffer.putInt(offset + 28 + i * 4, directPointers[i]);
             }
         }
-
-        final byte POINTERS[] = (type == SYM_LINK) ? urlBytes : BitUtils.toByteArray(directPointers);
-        final byte IND_POINTERS[] = BitUtils.toByteArray(indirectPointer);
-        return Bytes.concat(TYPE, SIZE, CR_TIME, M_TIME, A_TIME, DEL_TIME, LINKS, POINTERS, IND_POINTERS);
+        buffer.putInt(offset + 76, indirectPointer);
+        buffer.putInt(offset + 80, doubleIndirectPointer);
+        buffer.putInt(offset + 84, tripleIndirectPointer);
+        buffer.putInt(offset + 88, (int) (size >>> 32));
+        buffer.putInt(offset + 92, flags);
+        for (int i = 96; i < INODE_SIZE; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
     }
 
     public ArrayList<Integer> getDirectBlocks() {
@@ -158,6 +156,32 @@ public class Inode {
         return blocks;
     }
 
+    // Returns direct pointer 'index' (0 to 11), 0 if it is not used
+    public int getDirectPointer(int index) {
+        return directPointers[index];
+    }
+
+    public void setDirectPointer(int index, int block) {
+        directPointers[index] = block;
+    }
+
+    // Copy of every block pointer: the direct ones, then the single, double and triple indirect ones
+    public int[] getPointers() {
+        int pointers[] = Arrays.copyOf(directPointers, 15);
+        pointers[12] = indirectPointer;
+        pointers[13] = doubleIndirectPointer;
+        pointers[14] = tripleIndirectPointer;
+        return pointers;
+    }
+
+    // Puts back the pointers returned by getPointers()
+    public void setPointers(int pointers[]) {
+        System.arraycopy(pointers, 0, directPointers, 0, 12);
+        indirectPointer = pointers[12];
+        doubleIndirectPointer = pointers[13];
+        tripleIndirectPointer = pointers[14];
+    }
+
     public void setSymLinkUrl(String url) {
         this.url = url.trim();
     }
@@ -166,11 +190,11 @@ public class Inode {
         return url;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
-    public void setSize(int size) {
+    public void setSize(long size) {
         this.size = size;
     }
 
@@ -222,6 +246,31 @@ public class Inode {
         this.indirectPointer = indirectPointer;
     }
 
+    public int getDoubleIndirectPointer() {
+        return doubleIndirectPointer;
+    }
+
+    public void setDoubleIndirectPointer(int doubleIndirectPointer) {
+        this.doubleIndirectPointer = doubleIndirectPointer;
+    }
+
+    public int getTripleIndirectPointer() {
+        return tripleIndirectPointer;
+    }
+
+    public void setTripleIndirectPointer(int tripleIndirectPointer) {
+        this.tripleIndirectPointer = tripleIndirectPointer;
+    }
+
+    public boolean usesExtents() {
+        return (flags & EXTENTS) != 0;
+    }
+
+    // Only for files that don't have blocks yet: the two formats use the pointers differently
+    public void setExtents(boolean extents) {
+        flags = extents ? flags | EXTENTS : flags & ~EXTENTS;
+    }
+
     public int getInode() {
         return inode;
     }
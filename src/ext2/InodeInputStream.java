@@ -0,0 +1,168 @@
+package ext2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.Lock;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Reads the content of a file one block at a time, following its block map as it goes. Only the block being
+// read (and the blocks of the map on the way to it) are kept in memory. Reads of several whole blocks go
+// straight to the caller's buffer, one I/O for each run of consecutive data blocks. The file is read-locked
+// for each read, which fails if the file was removed since the stream was opened. Get one with
+// FileSystem.openFile()
+public class InodeInputStream extends InputStream implements ReadableByteChannel {
+
+    private final FileSystem FILE_SYSTEM;
+    private final Inode INODE;
+    private final long SIZE;
+
+    // Finds the data blocks, keeping the indirect blocks it goes through
+    private final BlockMap map;
+
+    // Last block read, and its index in the file (-1 if none)
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long blockIndex = -1;
+
+    private long position;
+    private boolean open = true;
+
+    InodeInputStream(FileSystem fileSystem, Inode inode) {
+        FILE_SYSTEM = fileSystem;
+        INODE = inode;
+        SIZE = inode.getSize();
+        map = BlockMap.of(fileSystem, inode);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        position++;
+        return block.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        int count = readRun(ByteBuffer.wrap(b, off, len));
+        if (count > 0) return count;
+        if (!fill()) return -1;
+        count = Math.min(len, block.remaining());
+        block.get(b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (!dst.hasRemaining()) return 0;
+        int count = readRun(dst);
+        if (count > 0) return count;
+        if (!fill()) return -1;
+        count = Math.min(dst.remaining(), block.remaining());
+        int limit = block.limit();
+        block.limit(block.position() + count);
+        dst.put(block);
+        block.limit(limit);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) return 0;
+        long skipped = Math.min(n, SIZE - position);
+        position += skipped;
+        // The block will be read again (or the next one) by fill()
+        blockIndex = -1;
+        return skipped;
+    }
+
+    // Bytes that can be read without reading another block
+    @Override
+    public int available() {
+        return (blockIndex == position / BLOCK_SIZE) ? block.remaining() : 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    public long getSize() {
+        return SIZE;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public Inode getInode() {
+        return INODE;
+    }
+
+    // When 'position' is at the start of a block and 'dst' has room for whole blocks of the file, reads as
+    // many as are in consecutive data blocks straight into 'dst'. Returns how many bytes were read (0 if none)
+    private int readRun(ByteBuffer dst) throws IOException {
+        if (!open) throw new IOException("The stream is closed");
+        if (position % BLOCK_SIZE != 0) return 0;
+        long blocks = Math.min(dst.remaining(), SIZE - position) / BLOCK_SIZE;
+        if (blocks < 2) return 0;
+
+        long index = position / BLOCK_SIZE;
+        int count;
+        Lock lock = FILE_SYSTEM.lockFile(INODE);
+        try {
+            int run = map.getRun(index, (int) Math.min(blocks, Integer.MAX_VALUE / BLOCK_SIZE));
+            if (run < 2) return 0;
+            count = run * BLOCK_SIZE;
+            int limit = dst.limit();
+            dst.limit(dst.position() + count);
+            FILE_SYSTEM.readDataBlocks(map.get(index), dst);
+            dst.limit(limit);
+        } finally {
+            lock.unlock();
+        }
+        position += count;
+        return count;
+    }
+
+    // Makes sure 'block' holds the data at 'position', with its position and limit set to the bytes that
+    // are left in that block. Returns false at the end of the file
+    private boolean fill() throws IOException {
+        if (!open) throw new IOException("The stream is closed");
+        if (position >= SIZE) return false;
+
+        long index = position / BLOCK_SIZE;
+        if (index != blockIndex) {
+            block.clear();
+            Lock lock = FILE_SYSTEM.lockFile(INODE);
+            try {
+                int dataBlock = map.get(index);
+                if (dataBlock == 0) {
+                    // Not allocated: reads as zeros
+                    while (block.hasRemaining()) block.put((byte) 0);
+                } else {
+                    FILE_SYSTEM.readDataBlock(dataBlock, block);
+                }
+            } finally {
+                lock.unlock();
+            }
+            blockIndex = index;
+        }
+        long blockStart = index * BLOCK_SIZE;
+        block.limit((int) Math.min(BLOCK_SIZE, SIZE - blockStart));
+        block.position((int) (position - blockStart));
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package ext2;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A read/write lock for each inode (slot 0 is never used since inode numbers start at 1). Lookups and
+// reads of a directory or a file take its read lock, changes take its write lock. When an operation holds
+// two of them, it takes the directory first and then the file or subdirectory inside it: the tree has no
+// cycles, so that order can't deadlock
+public class InodeLocks {
+
+    private final ReentrantReadWriteLock locks[];
+
+    // Locks for inodes 1 to 'capacity'
+    public InodeLocks(int capacity) {
+        locks = new ReentrantReadWriteLock[capacity + 1];
+        for (int i = 1; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    // Takes the read lock of 'inode' and returns it (for the unlock)
+    public Lock read(int inode) {
+        Lock lock = get(inode).readLock();
+        lock.lock();
+        return lock;
+    }
+
+    // Takes the write lock of 'inode' and returns it (for the unlock)
+    public Lock write(int inode) {
+        Lock lock = get(inode).writeLock();
+        lock.lock();
+        return lock;
+    }
+
+    private ReentrantReadWriteLock get(int inode) {
+        if (inode < 1 || inode >= locks.length) {
+            throw new IllegalArgumentException(String.format("Inode %d is out of range (1 - %d)", inode, locks.length - 1));
+        }
+        return locks[inode];
+    }
+}
@@ -0,0 +1,255 @@
+package ext2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+import static java.lang.Math.toIntExact;
+
+// Writes the content of a new file as it arrives: every time a block fills up it gets a data block and is
+// written to disk, so only one block is kept in memory no matter how big the file is. The inode, the
+// dir_entry and the bitmaps are written when the stream is closed; until then the file doesn't exist. An
+// append keeps what is written in memory instead, and adds it to the end of the file every APPEND_BUFFER
+// bytes and on close(). Get one with FileSystem.createFile() or FileSystem.appendFile()
+public class InodeOutputStream extends OutputStream implements WritableByteChannel {
+
+    // Bytes an append keeps in memory before adding them to the file
+    public static final int APPEND_BUFFER = 1 << 20;
+
+    // Blocks taken from the allocator at once the first time, doubled every time they run out (up to
+    // MAX_RESERVE) so the blocks of the file stay contiguous without knowing its size in advance
+    private static final int MIN_RESERVE = 8;
+    private static final int MAX_RESERVE = 256;
+
+    private final FileSystem FILE_SYSTEM;
+    // Inode of the directory the file is in
+    private final int DIRECTORY;
+    private final String FILE_NAME;
+    private final Inode INODE;
+    // True when the file is new: its dir_entry is added on close()
+    private final boolean CREATED;
+    // What an append wrote that isn't in the file yet (null for a new file)
+    private final ByteArrayOutputStream appended;
+
+    // Data blocks of the file, and the block map used to find them and to add new ones
+    private final BlockMap map;
+    private long blockCount;
+
+    // Data of the last block that hasn't been written yet (from 0 to its position)
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long size;
+
+    // Blocks already taken from the allocator but not used yet. The ones left are given back on close()
+    private final ArrayDeque<Integer> reserved = new ArrayDeque<>();
+    private int reserveSize = MIN_RESERVE;
+    // Where the next reservation should start so the file continues where it left off (0 for anywhere in the group of the inode)
+    private int goal;
+
+    private boolean open = true;
+
+    InodeOutputStream(FileSystem fileSystem, int directory, String fileName, Inode inode, boolean created) throws IOException {
+        FILE_SYSTEM = fileSystem;
+        DIRECTORY = directory;
+        FILE_NAME = fileName;
+        INODE = inode;
+        CREATED = created;
+        map = BlockMap.of(fileSystem, inode);
+        // For an append, the size of the file when it was opened (it may grow before the data is added)
+        size = inode.getSize();
+        appended = created ? null : new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkSpace(1);
+        if (appended != null) {
+            appended.write(b);
+            size++;
+            if (appended.size() >= APPEND_BUFFER) appendBuffered();
+            return;
+        }
+        block.put((byte) b);
+        size++;
+        if (!block.hasRemaining()) writeBlock();
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        checkSpace(len);
+        if (appended != null) {
+            appended.write(b, off, len);
+            size += len;
+            if (appended.size() >= APPEND_BUFFER) appendBuffered();
+            return;
+        }
+        while (len > 0) {
+            if (block.position() == 0 && len >= BLOCK_SIZE) {
+                // Whole block: write it straight from the caller's array
+                int dataBlock = getDataBlock(size / BLOCK_SIZE);
+                FILE_SYSTEM.writeDataBlock(dataBlock, ByteBuffer.wrap(b, off, BLOCK_SIZE));
+                size += BLOCK_SIZE;
+                off += BLOCK_SIZE;
+                len -= BLOCK_SIZE;
+                continue;
+            }
+            int count = Math.min(len, block.remaining());
+            block.put(b, off, count);
+            size += count;
+            off += count;
+            len -= count;
+            if (!block.hasRemaining()) writeBlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        int count = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), count);
+            src.position(src.limit());
+        } else {
+            checkSpace(count);
+            byte chunk[] = new byte[Math.min(count, BLOCK_SIZE)];
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, length);
+                write(chunk, 0, length);
+            }
+        }
+        return count;
+    }
+
+    // Nothing to do: the data of the last block is written on close(), together with the inode
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Writes the last block, the indirect blocks and the inode, adds the dir_entry of a new file and saves the
+    // bitmaps. A new file that can't be saved (its name was taken, the disk is full...) is dropped like abort()
+    // does. An append adds what is left in memory to the end of the file
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        if (!CREATED) {
+            appendBuffered();
+            return;
+        }
+
+        boolean closed = false;
+        try {
+            if (block.position() > 0) {
+                // Zero the unused part of the last block
+                while (block.hasRemaining()) block.put((byte) 0);
+                writeBlock();
+            }
+
+            // Give back the blocks that weren't needed
+            while (!reserved.isEmpty()) {
+                FILE_SYSTEM.freeBlock(reserved.poll());
+            }
+
+            map.flush();
+            FILE_SYSTEM.closeFile(DIRECTORY, FILE_NAME, INODE, size);
+            closed = true;
+        } finally {
+            if (!closed) drop();
+        }
+    }
+
+    // Closes the stream without saving what is left: a new file gives back its inode and every block it took,
+    // an append drops what it hasn't added to the file yet
+    public void abort() throws IOException {
+        if (!open) return;
+        open = false;
+        if (CREATED) {
+            drop();
+        } else {
+            appended.reset();
+        }
+    }
+
+    // Takes 'count' more data blocks (and the blocks the map needs to reference them) from the allocator right
+    // away. Useful when the size of the file is known in advance
+    void reserve(int count) throws IOException {
+        if (count <= 0) return;
+        take(toIntExact(count + map.countMapBlocks(blockCount + count) - map.countMapBlocks(blockCount)));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // Writes 'block' (full, or the last one on close()) to the data block it belongs to
+    private void writeBlock() throws IOException {
+        int dataBlock = getDataBlock((size - 1) / BLOCK_SIZE);
+        block.flip();
+        FILE_SYSTEM.writeDataBlock(dataBlock, block);
+        block.clear();
+    }
+
+    // Returns the data block of block 'index' of the file, taking a new one if the file doesn't have it yet.
+    // Blocks are always added at the end of the file
+    private int getDataBlock(long index) throws IOException {
+        if (index < blockCount) return map.get(index);
+
+        // The indirect blocks that are missing come from the reservation too, right before the data block
+        ArrayDeque<Integer> mapBlocks = new ArrayDeque<>();
+        for (long i = map.countMapBlocks(index + 1) - map.countMapBlocks(index); i > 0; i--) {
+            mapBlocks.add(nextReservedBlock());
+        }
+        int dataBlock = nextReservedBlock();
+        map.set(index, dataBlock, () -> mapBlocks.isEmpty() ? nextReservedBlock() : mapBlocks.poll());
+        blockCount++;
+        return dataBlock;
+    }
+
+    private int nextReservedBlock() {
+        if (reserved.isEmpty()) {
+            take(Math.max(1, Math.min(reserveSize, FILE_SYSTEM.getFreeBlocks())));
+            reserveSize = Math.min(reserveSize * 2, MAX_RESERVE);
+        }
+        return reserved.poll();
+    }
+
+    private void take(int count) {
+        reserved.addAll(FILE_SYSTEM.allocateBlocks(count, INODE.getInode(), goal));
+        goal = reserved.peekLast() + 1;
+    }
+
+    // Adds what an append has in memory to the end of the file, as it is now
+    private void appendBuffered() throws IOException {
+        if (appended.size() == 0) return;
+        FILE_SYSTEM.appendData(INODE, ByteBuffer.wrap(appended.toByteArray()));
+        appended.reset();
+    }
+
+    // Gives back the blocks and the inode of a new file
+    private void drop() throws IOException {
+        while (!reserved.isEmpty()) {
+            FILE_SYSTEM.freeBlock(reserved.poll());
+        }
+        // The map is freed from what is on disk
+        map.flush();
+        FILE_SYSTEM.dropFile(DIRECTORY, FILE_NAME, INODE, map);
+    }
+
+    private void checkSpace(int length) throws IOException {
+        if (!open) throw new IOException("The stream is closed");
+        if (size + length > map.getMaxBlocks() * BLOCK_SIZE) {
+            throw new IllegalArgumentException("The file is too big");
+        }
+    }
+}
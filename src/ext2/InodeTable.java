@@ -1,5 +1,68 @@
 package ext2;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 
-public class InodeTable extends HashMap<Integer, Inode> {}
+// Inodes indexed directly by their number (slot 0 is never used since inode numbers start at 1).
+// Lookups are a plain array access: no Integer boxing and no hash buckets to follow. Every method is
+// synchronized so the table can be shared by many threads
+public class InodeTable {
+
+    private final Inode inodes[];
+    private int size;
+
+    // On-disk inode table and inode bitmap, only kept when the inodes are decoded the first time they are needed
+    private ByteBuffer rawTable;
+    private Bitmap usedInodes;
+
+    // Empty table for inodes 1 to 'capacity'
+    public InodeTable(int capacity) {
+        inodes = new Inode[capacity + 1];
+    }
+
+    // Inode table that decodes each inode from table[] on its first get()
+    public InodeTable(int capacity, byte table[], Bitmap usedInodes) {
+        this(capacity);
+        this.rawTable = ByteBuffer.wrap(table);
+        this.usedInodes = usedInodes;
+    }
+
+    public synchronized Inode get(int index) {
+        if (index < 1 || index >= inodes.length) return null;
+        Inode inode = inodes[index];
+        if (inode == null && rawTable != null && usedInodes.isSet(index)) {
+            int offset = (index - 1) * Inode.INODE_SIZE;
+            inode = Inode.decode(rawTable, offset, index);
+            if (inode != null) put(index, inode);
+        }
+        return inode;
+    }
+
+    // Stores 'inode' at 'index' and returns the inode that was there before (if any)
+    public synchronized Inode put(int index, Inode inode) {
+        if (index < 1 || index >= inodes.length) {
+            throw new IllegalArgumentException(String.format("Inode %d is out of range (1 - %d)", index, inodes.length - 1));
+        }
+        Inode previous = inodes[index];
+        inodes[index] = inode;
+        if (previous == null && inode != null) size++;
+        if (previous != null && inode == null) size--;
+        return previous;
+    }
+
+    public synchronized Inode remove(int index) {
+        return put(index, null);
+    }
+
+    public synchronized boolean containsKey(int index) {
+        return get(index) != null;
+    }
+
+    // Returns how many inodes have been decoded into the table
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return inodes.length - 1;
+    }
+}
@@ -0,0 +1,327 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Write-ahead log of metadata blocks (JBD style) kept in a contiguous region of the volume. Metadata writes
+// go to the running transaction instead of their place on disk. A transaction is committed by writing a
+// descriptor block (the blocks it changes and the blocks it revokes), a copy of each block and a commit block
+// with a checksum of all of it, then flushing the device once. Committed blocks are written to their place
+// (checkpointed) when the log is half full; until then reads get them from here. load() replays the
+// committed transactions that weren't checkpointed, so after a crash the volume has every operation of the
+// last committed transaction and nothing of the ones after it.
+//
+// Operations are grouped: a transaction is committed after a number of operations or some time since the
+// first one, whatever comes first, so many small operations share the cost of a commit.
+//
+// A block that is freed while the log still has a copy of it is revoked: its copies are never checkpointed
+// nor replayed, since the block may hold file data by then. Data blocks are not logged, they are written in
+// place before the commit that references them (ordered mode)
+//
+// The journal isn't thread-safe by itself: FileSystem only calls it with its metadata lock held
+public class Journal {
+
+    public static final int DEFAULT_BLOCKS = 1024;
+    public static final int DEFAULT_COMMIT_OPERATIONS = 64;
+    public static final long DEFAULT_COMMIT_MILLIS = 1000;
+
+    private static final int HEADER_MAGIC = 0x4A524E4C;
+    private static final int BLOCK_MAGIC = 0x4A424C4B;
+    private static final int DESCRIPTOR = 1;
+    private static final int COMMIT = 2;
+    // Descriptor: magic, journal id, type, sequence, block count and revoke count, followed by the block numbers
+    // and the revoked blocks. A commit block has the magic, the id, the type, the sequence and the checksum
+    private static final int DESCRIPTOR_HEADER = 24;
+    private static final int MAX_ENTRIES = (BLOCK_SIZE - DESCRIPTOR_HEADER) / 4;
+    // A transaction is committed before it gets close to what a descriptor can hold
+    private static final int COMMIT_ENTRIES = MAX_ENTRIES / 2;
+
+    private final BlockDevice DEVICE;
+    // First block of the region (the header) and how many blocks of the log follow it
+    private final int START;
+    private final int LOG_SIZE;
+
+    // Chosen at format(), so the log records left by a previous format are never taken for new ones
+    private int id;
+    // Oldest transaction that hasn't been checkpointed (position in the log and sequence number), and where
+    // the next one goes
+    private int tail;
+    private int tailSequence;
+    private int head;
+    private int sequence;
+
+    // Block -> content: changes of the running transaction and committed changes not checkpointed yet (in
+    // block order, that's how checkpoint() writes them)
+    private final LinkedHashMap<Integer, byte[]> running = new LinkedHashMap<>();
+    private final HashSet<Integer> revoked = new HashSet<>();
+    private final TreeMap<Integer, byte[]> committed = new TreeMap<>();
+    // Blocks with a copy in the part of the log that hasn't been checkpointed
+    private final HashSet<Integer> logged = new HashSet<>();
+
+    private int commitOperations = DEFAULT_COMMIT_OPERATIONS;
+    private long commitMillis = DEFAULT_COMMIT_MILLIS;
+    private int operations;
+    private long firstOperation;
+
+    private long commits;
+    private long checkpoints;
+    private long loggedBlocks;
+
+    // Journal in the 'length' blocks of 'device' that start at block 'start'. Call replay() or format() before using it
+    public Journal(BlockDevice device, int start, int length) {
+        DEVICE = device;
+        START = start;
+        LOG_SIZE = length - 1;
+    }
+
+    // Empties the log
+    public void format() throws IOException {
+        id = new Random().nextInt();
+        tail = head = 0;
+        tailSequence = sequence = 1;
+        writeHeader();
+    }
+
+    // Writes the transactions that were committed but not checkpointed to their place, and empties the log.
+    // Returns how many transactions were replayed
+    public int replay() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        DEVICE.readBlock(START, buffer);
+        if (buffer.getInt(0) != HEADER_MAGIC) {
+            throw new IOException("The journal of the volume is damaged");
+        }
+        id = buffer.getInt(4);
+        tail = head = buffer.getInt(8);
+        tailSequence = sequence = buffer.getInt(12);
+        if (tail < 0 || tail >= LOG_SIZE) {
+            throw new IOException("The journal of the volume is damaged");
+        }
+
+        // Find every complete transaction, in order. The first one that isn't complete ends the log
+        ArrayList<LinkedHashMap<Integer, byte[]>> transactions = new ArrayList<>();
+        HashMap<Integer, Integer> revokedBy = new HashMap<>();
+        while (true) {
+            ByteBuffer descriptor = ByteBuffer.allocate(BLOCK_SIZE);
+            DEVICE.readBlock(getLogBlock(head), descriptor);
+            int count = descriptor.getInt(16);
+            int revokes = descriptor.getInt(20);
+            if (!isRecord(descriptor, DESCRIPTOR) || count < 0 || revokes < 0 || count + revokes > MAX_ENTRIES || count + 2 > LOG_SIZE) {
+                break;
+            }
+
+            CRC32 checksum = new CRC32();
+            checksum.update(descriptor.array());
+            LinkedHashMap<Integer, byte[]> blocks = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte copy[] = new byte[BLOCK_SIZE];
+                DEVICE.readBlock(getLogBlock(head + 1 + i), ByteBuffer.wrap(copy));
+                checksum.update(copy);
+                blocks.put(descriptor.getInt(DESCRIPTOR_HEADER + i * 4), copy);
+            }
+            ByteBuffer commit = ByteBuffer.allocate(BLOCK_SIZE);
+            DEVICE.readBlock(getLogBlock(head + 1 + count), commit);
+            if (!isRecord(commit, COMMIT) || commit.getInt(16) != (int) checksum.getValue()) {
+                break;
+            }
+
+            for (int i = 0; i < revokes; i++) {
+                revokedBy.put(descriptor.getInt(DESCRIPTOR_HEADER + (count + i) * 4), sequence);
+            }
+            transactions.add(blocks);
+            head = (head + count + 2) % LOG_SIZE;
+            sequence++;
+        }
+
+        // A revoke cancels the copies of the transactions before it
+        for (int i = 0; i < transactions.size(); i++) {
+            int transaction = tailSequence + i;
+            for (Map.Entry<Integer, byte[]> block : transactions.get(i).entrySet()) {
+                Integer revoke = revokedBy.get(block.getKey());
+                if (revoke != null && revoke > transaction) continue;
+                DEVICE.writeBlock(block.getKey(), ByteBuffer.wrap(block.getValue()));
+            }
+        }
+        DEVICE.flush();
+        tail = head;
+        tailSequence = sequence;
+        writeHeader();
+        return transactions.size();
+    }
+
+    // Adds a change of 'block' to the running transaction: FileSystem.BLOCK_SIZE bytes from 'src' (starting at
+    // its position, which is advanced by that amount)
+    public void write(int block, ByteBuffer src) {
+        byte copy[] = running.get(block);
+        if (copy == null) {
+            copy = new byte[BLOCK_SIZE];
+            running.put(block, copy);
+        }
+        src.get(copy);
+        // The new content replaces whatever was freed before in this transaction
+        revoked.remove(block);
+    }
+
+    // Puts the latest content of 'block' into 'dst' if the journal has it. Returns false if the block has to
+    // be read from its place
+    public boolean read(int block, ByteBuffer dst) {
+        byte copy[] = running.get(block);
+        if (copy == null) copy = committed.get(block);
+        if (copy == null) return false;
+        dst.put(copy);
+        return true;
+    }
+
+    // Call when 'block' is freed: the journal forgets its content, and if the log has a copy of it the running
+    // transaction records that it must not be replayed
+    public void revoke(int block) {
+        running.remove(block);
+        committed.remove(block);
+        if (logged.contains(block)) revoked.add(block);
+    }
+
+    // Call at the end of every operation. Returns true when the running transaction should be committed
+    public boolean operationDone() {
+        if (running.isEmpty() && revoked.isEmpty()) return false;
+        if (operations++ == 0) firstOperation = System.currentTimeMillis();
+        return isDue();
+    }
+
+    // Whether the running transaction should be committed now (same test as operationDone(), without
+    // counting an operation)
+    public boolean isDue() {
+        if (operations == 0 || (running.isEmpty() && revoked.isEmpty())) return false;
+        return operations >= commitOperations || System.currentTimeMillis() - firstOperation >= commitMillis || isFull();
+    }
+
+    // Time (as System.currentTimeMillis()) at which the running transaction is due because of its age, -1 if
+    // no operation was counted since the last commit
+    public long getDueTime() {
+        return operations == 0 ? -1 : firstOperation + commitMillis;
+    }
+
+    // Whether the running transaction has to be committed before it gets too big for the log, whatever the
+    // group commit settings say
+    public boolean isFull() {
+        return running.size() + revoked.size() >= COMMIT_ENTRIES;
+    }
+
+    // Commits the running transaction to the log, with a single flush of the device
+    public void commit() throws IOException {
+        operations = 0;
+        if (running.isEmpty() && revoked.isEmpty()) return;
+        int count = running.size();
+        if (count + revoked.size() > MAX_ENTRIES || count + 2 >= LOG_SIZE) {
+            throw new IOException(String.format("A transaction of %d blocks doesn't fit in the journal", count));
+        }
+        if (count + 2 >= LOG_SIZE - getUsedBlocks()) checkpoint();
+
+        ByteBuffer descriptor = ByteBuffer.allocate(BLOCK_SIZE);
+        descriptor.putInt(BLOCK_MAGIC).putInt(id).putInt(DESCRIPTOR).putInt(sequence).putInt(count).putInt(revoked.size());
+        for (int block : running.keySet()) {
+            descriptor.putInt(block);
+        }
+        for (int block : revoked) {
+            descriptor.putInt(block);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(descriptor.array());
+        descriptor.clear();
+        DEVICE.writeBlock(getLogBlock(head), descriptor);
+
+        int position = head + 1;
+        for (byte copy[] : running.values()) {
+            checksum.update(copy);
+            DEVICE.writeBlock(getLogBlock(position++), ByteBuffer.wrap(copy));
+        }
+        // The checksum lets replay() tell a complete transaction, so the commit block doesn't need its own flush
+        ByteBuffer commit = ByteBuffer.allocate(BLOCK_SIZE);
+        commit.putInt(BLOCK_MAGIC).putInt(id).putInt(COMMIT).putInt(sequence).putInt((int) checksum.getValue());
+        commit.clear();
+        DEVICE.writeBlock(getLogBlock(position), commit);
+        DEVICE.flush();
+
+        committed.putAll(running);
+        logged.addAll(running.keySet());
+        loggedBlocks += count;
+        running.clear();
+        revoked.clear();
+        head = (head + count + 2) % LOG_SIZE;
+        sequence++;
+        commits++;
+
+        if (getUsedBlocks() > LOG_SIZE / 2) checkpoint();
+    }
+
+    // Writes the committed blocks to their place and empties the log
+    public void checkpoint() throws IOException {
+        if (head == tail) return;
+        for (Map.Entry<Integer, byte[]> block : committed.entrySet()) {
+            DEVICE.writeBlock(block.getKey(), ByteBuffer.wrap(block.getValue()));
+        }
+        DEVICE.flush();
+        committed.clear();
+        logged.clear();
+        tail = head;
+        tailSequence = sequence;
+        writeHeader();
+        DEVICE.flush();
+        checkpoints++;
+    }
+
+    // Commits after 'operations' operations or 'millis' milliseconds since the first operation of the
+    // transaction, whatever comes first. (1, 0) commits every operation
+    public void setGroupCommit(int operations, long millis) {
+        commitOperations = Math.max(1, operations);
+        commitMillis = Math.max(0, millis);
+    }
+
+    // Returns how many blocks of the log are taken by transactions that haven't been checkpointed
+    public int getUsedBlocks() {
+        return (head - tail + LOG_SIZE) % LOG_SIZE;
+    }
+
+    public int getLogSize() {
+        return LOG_SIZE;
+    }
+
+    public long getCommits() {
+        return commits;
+    }
+
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d log blocks used, %d commits (%d blocks), %d checkpoints, %d blocks in the running transaction",
+                getUsedBlocks(), LOG_SIZE, commits, loggedBlocks, checkpoints, running.size());
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+        header.putInt(HEADER_MAGIC).putInt(id).putInt(tail).putInt(tailSequence);
+        header.clear();
+        DEVICE.writeBlock(START, header);
+    }
+
+    // Whether 'buffer' holds a record of type 'type' of the transaction that replay() expects next
+    private boolean isRecord(ByteBuffer buffer, int type) {
+        return buffer.getInt(0) == BLOCK_MAGIC && buffer.getInt(4) == id && buffer.getInt(8) == type && buffer.getInt(12) == sequence;
+    }
+
+    // Device block of position 'position' of the log (it wraps around)
+    private int getLogBlock(int position) {
+        return START + 1 + position % LOG_SIZE;
+    }
+}
@@ -0,0 +1,166 @@
+package ext2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Load generator for Server: opens 1, 10, 100 and 1000 connections (up to the maximum given) and has each
+// one run the same mix of commands (create a file, read it, list the directory, remove it) in a directory
+// of its own under /load. Prints the throughput and the 50th, 90th and 99th percentile of the latency of a
+// command for each number of connections.
+//
+// Usage: LoadClient [port] [max connections] [commands per connection]
+public class LoadClient {
+
+    private static final int DEFAULT_CONNECTIONS = 1000;
+    private static final int DEFAULT_COMMANDS = 200;
+
+    private final int PORT;
+
+    public LoadClient(int port) {
+        PORT = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Server.DEFAULT_PORT;
+        int maxConnections = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONNECTIONS;
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_COMMANDS;
+
+        LoadClient client = new LoadClient(port);
+        System.out.printf("%11s %10s %9s %9s %9s%n", "Connections", "Commands/s", "p50 ms", "p90 ms", "p99 ms");
+        for (int connections = 1; connections <= maxConnections; connections *= 10) {
+            client.run(connections, commands);
+        }
+    }
+
+    // Runs 'commands' commands on each of 'connections' connections at the same time and prints the results
+    public void run(int connections, int commands) throws Exception {
+        ExecutorService threads = Server.newThreadPerTaskExecutor();
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Future<long[]>> results = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            results.add(threads.submit(() -> {
+                boolean counted = false;
+                try (Connection connection = new Connection(PORT)) {
+                    connection.setUp(id);
+                    ready.countDown();
+                    counted = true;
+                    start.await();
+                    return connection.work(commands);
+                } finally {
+                    // A connection that failed doesn't hold the others back
+                    if (!counted) ready.countDown();
+                }
+            }));
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+
+        long latencies[] = new long[connections * commands];
+        int count = 0;
+        for (Future<long[]> result : results) {
+            long connectionLatencies[] = result.get();
+            System.arraycopy(connectionLatencies, 0, latencies, count, connectionLatencies.length);
+            count += connectionLatencies.length;
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        threads.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%11d %10.0f %9.2f %9.2f %9.2f%n", connections, count / seconds,
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99));
+    }
+
+    // In milliseconds
+    private static double percentile(long sorted[], int percent) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // A client of the server
+    private static class Connection implements AutoCloseable {
+
+        private final Socket SOCKET;
+        private final BufferedReader IN;
+        private final PrintWriter OUT;
+
+        private Connection(int port) throws IOException {
+            SOCKET = new Socket(InetAddress.getLoopbackAddress(), port);
+            SOCKET.setTcpNoDelay(true);
+            IN = new BufferedReader(new InputStreamReader(SOCKET.getInputStream(), StandardCharsets.UTF_8));
+            OUT = new PrintWriter(new OutputStreamWriter(SOCKET.getOutputStream(), StandardCharsets.UTF_8));
+            // The server greets with an empty reply
+            readReply();
+        }
+
+        // Goes to /load/c<id>, creating the directories if they aren't there yet (they are kept for the next runs)
+        private void setUp(int id) throws IOException {
+            send("cd /");
+            send("mkdir load");
+            send("cd load");
+            send("mkdir c" + id);
+            send("cd c" + id);
+        }
+
+        // Returns the latency of each command, in nanoseconds
+        private long[] work(int commands) throws IOException {
+            long latencies[] = new long[commands];
+            for (int i = 0; i < commands; i++) {
+                long start = System.nanoTime();
+                switch (i % 4) {
+                    case 0:
+                        send("cat > file\nline " + i + "\neof");
+                        break;
+                    case 1:
+                        send("cat file");
+                        break;
+                    case 2:
+                        send("ls");
+                        break;
+                    default:
+                        send("rm file");
+                        break;
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+            return latencies;
+        }
+
+        // Sends the lines of a command and waits for its reply
+        private String send(String command) throws IOException {
+            OUT.print(command + "\n");
+            OUT.flush();
+            return readReply();
+        }
+
+        private String readReply() throws IOException {
+            StringBuilder reply = new StringBuilder();
+            String line;
+            while ((line = IN.readLine()) != null && !line.equals(".")) {
+                reply.append(line.startsWith(".") ? line.substring(1) : line).append('\n');
+            }
+            if (line == null) throw new IOException("The server closed the connection");
+            return reply.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            OUT.print("exit\n");
+            OUT.flush();
+            SOCKET.close();
+        }
+    }
+}
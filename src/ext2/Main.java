@@ -2,28 +2,75 @@ package ext2;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class Main {
 
     public static void main(String[] args) {
         try {
-            Disk disk;
+            BlockDevice device;
             FileSystem fileSystem;
             File binaryFile = new File("disk.bin");
-            if (binaryFile.exists() && !binaryFile.isDirectory()) {
-                disk = new Disk(binaryFile);
-                fileSystem = new FileSystem(disk);
+            boolean formatted = binaryFile.exists() && !binaryFile.isDirectory();
+            if (Arrays.asList(args).contains("-ram")) {
+                // Volume in memory only, nothing is read from or saved to disk.bin
+                device = new RamBlockDevice(Disk.SIZE_MB * 1024 * 1024 / FileSystem.BLOCK_SIZE, true);
+                formatted = false;
+            } else {
+                if (!formatted) binaryFile.createNewFile();
+                Disk disk = new Disk(binaryFile);
+                // Use '-mmap' to mount the volume through memory mapped windows instead of positional reads/writes
+                device = Arrays.asList(args).contains("-mmap") ? new MappedBlockDevice(disk) : new FileBlockDevice(disk);
+            }
+
+            // Use '-cache=<MB>' to size the buffer cache and '-writeback' to keep written blocks in it until sync
+            int cacheSize = BufferCache.DEFAULT_SIZE;
+            for (String arg : args) {
+                if (arg.startsWith("-cache=")) cacheSize = Integer.parseInt(arg.substring("-cache=".length())) * 1024 * 1024;
+            }
+            BufferCache.Mode mode = Arrays.asList(args).contains("-writeback") ? BufferCache.Mode.WRITE_BACK : BufferCache.Mode.WRITE_THROUGH;
+            fileSystem = new FileSystem(new BufferCache(device, cacheSize, mode));
+            // Use '-extents' to map the blocks of new files with extents instead of block pointers. When formatting
+            // it becomes the default of the volume (saved in the superblock)
+            boolean extents = Arrays.asList(args).contains("-extents");
+            // Use '-nojournal' to write the metadata in place instead of going through the journal
+            fileSystem.setJournaling(!Arrays.asList(args).contains("-nojournal"));
+            if (formatted) {
                 fileSystem.load();
+                if (extents) fileSystem.setExtentFiles(true);
             } else {
-                binaryFile.createNewFile();
-                disk = new Disk(binaryFile);
-                fileSystem = new FileSystem(disk);
+                fileSystem.setExtentFiles(extents);
                 System.out.println("Formatting the disk...");
                 fileSystem.format();
                 System.out.println("Format successful");
             }
+            // Use '-server' (or '-server=<port>') to serve the shell to other processes instead of reading stdin
+            int port = -1;
+            for (String arg : args) {
+                if (arg.equals("-server")) port = Server.DEFAULT_PORT;
+                if (arg.startsWith("-server=")) port = Integer.parseInt(arg.substring("-server=".length()));
+            }
+            if (port >= 0) {
+                Server server = new Server(fileSystem, port);
+                // Runs until the process is stopped. The clients are disconnected, and their last commands
+                // finish, before the volume is synced
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        server.close();
+                        fileSystem.sync();
+                        device.close();
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }));
+                System.out.printf("Listening on port %d%n", server.getPort());
+                server.run();
+                return;
+            }
             Shell shell = new Shell(fileSystem);
             shell.start();
+            fileSystem.sync();
+            device.close();
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
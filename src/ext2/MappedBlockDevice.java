@@ -0,0 +1,77 @@
+package ext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Block device backed by memory mapped windows of the binary file. Reading or writing a block is a
+// plain buffer copy, the operating system writes the modified pages back to the file
+public class MappedBlockDevice extends AbstractBlockDevice {
+
+    // Size of each mapped window (64 MB), the 256 MB volume is mapped in 4 windows. It is a multiple
+    // of the block size so a block never spans two windows
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int BLOCKS_PER_WINDOW = WINDOW_SIZE / BLOCK_SIZE;
+
+    private final Disk DISK;
+    private final MappedByteBuffer windows[];
+
+    public MappedBlockDevice(Disk disk) throws IOException {
+        super(disk.getSizeBytes() / BLOCK_SIZE);
+        DISK = disk;
+        // The whole volume must exist in the file before it can be mapped
+        if (disk.length() < disk.getSizeBytes()) {
+            disk.setLength(disk.getSizeBytes());
+        }
+
+        FileChannel channel = disk.getChannel();
+        int windowCount = (disk.getSizeBytes() + WINDOW_SIZE - 1) / WINDOW_SIZE;
+        windows = new MappedByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long start = (long) i * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE, disk.getSizeBytes() - start);
+            windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+    }
+
+    @Override
+    public void readBlock(int block, ByteBuffer dst) {
+        checkBlock(block, dst);
+        dst.put(slice(block));
+    }
+
+    @Override
+    public void writeBlock(int block, ByteBuffer src) {
+        checkBlock(block, src);
+        int limit = src.limit();
+        src.limit(src.position() + BLOCK_SIZE);
+        slice(block).put(src);
+        src.limit(limit);
+    }
+
+    // Writes the modified pages of every window back to the binary file
+    @Override
+    public void flush() {
+        for (MappedByteBuffer window : windows) {
+            window.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        DISK.close();
+    }
+
+    // View of the window bytes that belong to 'block'. The windows' own position is never touched
+    private ByteBuffer slice(int block) {
+        ByteBuffer view = windows[block / BLOCKS_PER_WINDOW].duplicate();
+        int offset = (block % BLOCKS_PER_WINDOW) * BLOCK_SIZE;
+        view.position(offset);
+        view.limit(offset + BLOCK_SIZE);
+        return view;
+    }
+}
@@ -0,0 +1,178 @@
+package ext2;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Results of path lookups, keyed by the inode of the directory the lookup starts from (root for absolute
+// paths) and the normalized path. Misses are cached too. Each result remembers the directories that were
+// searched to get it, so adding or removing a dir_entry in a directory only drops the lookups that went
+// through that directory. It can be shared by many threads: a lookup that ran while a directory it searched
+// was changing isn't cached (see getGeneration())
+public class PathCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // Outcome of a lookup: the dir_entry found (null if none) and whether every component of the path was
+    // found, with directories in every position but the last
+    public static class Result {
+
+        private final DirectoryEntry entry;
+        private final boolean complete;
+        private final String key;
+        private final int directories[];
+
+        private Result(String key, DirectoryEntry entry, boolean complete, int directories[]) {
+            this.key = key;
+            this.entry = entry;
+            this.complete = complete;
+            this.directories = directories;
+        }
+
+        public DirectoryEntry getEntry() {
+            return entry;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private final int CAPACITY;
+    private final LinkedHashMap<String, Result> results;
+    // Directory inode -> keys of the lookups that searched that directory
+    private final HashMap<Integer, HashSet<String>> dependents = new HashMap<>();
+
+    // Incremented by every invalidation
+    private long generation;
+
+    private long hits;
+    private long misses;
+
+    public PathCache(int capacity) {
+        CAPACITY = Math.max(1, capacity);
+        results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                if (size() <= CAPACITY) return false;
+                forget(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public PathCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Builds the key of a lookup of 'names' (the path components) starting at directory 'start'
+    public static String key(int start, List<String> names) {
+        StringBuilder key = new StringBuilder().append(start).append(':');
+        for (String name : names) {
+            key.append('/').append(name);
+        }
+        return key.toString();
+    }
+
+    // Returns the cached result for 'key', null if the lookup isn't cached
+    public synchronized Result get(String key) {
+        Result result = results.get(key);
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    // Caches the outcome of a lookup. 'directories' are the inodes of every directory that was searched
+    public synchronized Result put(String key, DirectoryEntry entry, boolean complete, List<Integer> directories) {
+        return put(key, entry, complete, directories, generation);
+    }
+
+    // Same as put(key, entry, complete, directories) for a lookup that started when getGeneration() returned
+    // 'generation'. If something was invalidated since then, the result is returned but not cached: the
+    // lookup may have seen a directory before the change that invalidated it
+    public synchronized Result put(String key, DirectoryEntry entry, boolean complete, List<Integer> directories, long generation) {
+        int inodes[] = new int[directories.size()];
+        for (int i = 0; i < inodes.length; i++) {
+            inodes[i] = directories.get(i);
+        }
+        Result result = new Result(key, entry, complete, inodes);
+        if (generation != this.generation) return result;
+        for (int inode : inodes) {
+            dependents.computeIfAbsent(inode, k -> new HashSet<>()).add(key);
+        }
+        Result previous = results.put(key, result);
+        if (previous != null && previous != result) {
+            // Keep the dependencies of the new result only
+            for (int inode : previous.directories) {
+                if (!contains(inodes, inode)) removeDependent(inode, key);
+            }
+        }
+        return result;
+    }
+
+    // Drops every lookup that searched directory 'inode'. Call it when a dir_entry of that directory is added
+    // or removed, or when the directory itself is removed
+    public synchronized void invalidate(int inode) {
+        generation++;
+        HashSet<String> keys = dependents.remove(inode);
+        if (keys == null) return;
+        for (String key : keys) {
+            Result result = results.remove(key);
+            if (result != null) forget(result);
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        results.clear();
+        dependents.clear();
+    }
+
+    // Read it before starting a lookup and pass it to put()
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d/%d paths cached, %d hits, %d misses", results.size(), CAPACITY, hits, misses);
+    }
+
+    private void forget(Result result) {
+        for (int inode : result.directories) {
+            removeDependent(inode, result.key);
+        }
+    }
+
+    private void removeDependent(int inode, String key) {
+        HashSet<String> keys = dependents.get(inode);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) dependents.remove(inode);
+        }
+    }
+
+    private static boolean contains(int array[], int value) {
+        for (int element : array) {
+            if (element == value) return true;
+        }
+        return false;
+    }
+}
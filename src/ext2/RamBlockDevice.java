@@ -0,0 +1,59 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+
+import static ext2.FileSystem.BLOCK_SIZE;
+
+// Block device that lives entirely in memory (on the heap or off-heap). Nothing is persisted, it is
+// meant to benchmark and try the file system logic without any file I/O
+public class RamBlockDevice extends AbstractBlockDevice {
+
+    private final ByteBuffer MEMORY;
+
+    public RamBlockDevice(int blockCount, boolean direct) {
+        super(blockCount);
+        int size = Math.multiplyExact(blockCount, BLOCK_SIZE);
+        MEMORY = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public void readBlock(int block, ByteBuffer dst) {
+        checkBlock(block, dst);
+        dst.put(slice(block));
+    }
+
+    @Override
+    public void readBlocks(int first, ByteBuffer dst) {
+        int count = dst.remaining() / BLOCK_SIZE;
+        checkBlocks(first, count, dst);
+        ByteBuffer view = MEMORY.duplicate();
+        view.position(first * BLOCK_SIZE);
+        view.limit((first + count) * BLOCK_SIZE);
+        dst.put(view);
+    }
+
+    @Override
+    public void writeBlock(int block, ByteBuffer src) {
+        checkBlock(block, src);
+        int limit = src.limit();
+        src.limit(src.position() + BLOCK_SIZE);
+        slice(block).put(src);
+        src.limit(limit);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do, the blocks are never stored anywhere else
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private ByteBuffer slice(int block) {
+        ByteBuffer view = MEMORY.duplicate();
+        view.position(block * BLOCK_SIZE);
+        view.limit(block * BLOCK_SIZE + BLOCK_SIZE);
+        return view;
+    }
+}
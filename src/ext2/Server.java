@@ -0,0 +1,155 @@
+package ext2;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Serves the shell commands to other processes of the same machine over a loopback TCP socket, each client
+// with its own Shell (and so its own current directory) on its own thread. The protocol is the shell itself,
+// one line per command: the reply is what the shell prints, followed by a line with a single '.'. Lines of
+// the reply that start with '.' get another one in front (like SMTP). The server sends an empty reply when
+// a client connects, 'cat > file' takes the lines up to 'eof' before replying and 'exit' closes the connection
+public class Server implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 4053;
+    // Connections that can wait to be accepted
+    private static final int BACKLOG = 1024;
+    // How long close() waits for the clients to finish the command they are running
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final FileSystem FILE_SYSTEM;
+    private final ServerSocket SOCKET;
+    private final ExecutorService CONNECTIONS = newThreadPerTaskExecutor();
+    // Sockets of the clients connected, closed by close()
+    private final Set<Socket> CLIENTS = ConcurrentHashMap.newKeySet();
+
+    // Listens on 'port' of the loopback address (0 for any free port, see getPort())
+    public Server(FileSystem fileSystem, int port) throws IOException {
+        FILE_SYSTEM = fileSystem;
+        SOCKET = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+    }
+
+    // Accepts clients until close() is called
+    public void run() throws IOException {
+        try {
+            for (; ; ) {
+                Socket client = SOCKET.accept();
+                CLIENTS.add(client);
+                try {
+                    CONNECTIONS.execute(() -> serve(client));
+                } catch (RejectedExecutionException e) {
+                    // close() came in between
+                    CLIENTS.remove(client);
+                    client.close();
+                }
+            }
+        } catch (SocketException e) {
+            // Closed by close()
+            if (!SOCKET.isClosed()) throw e;
+        }
+    }
+
+    public int getPort() {
+        return SOCKET.getLocalPort();
+    }
+
+    // Stops accepting clients and disconnects the ones connected, then waits (up to CLOSE_TIMEOUT_SECONDS) for
+    // their threads to finish the command they were running. After that the file system can be synced
+    @Override
+    public void close() throws IOException {
+        SOCKET.close();
+        CONNECTIONS.shutdown();
+        for (Socket client : CLIENTS) {
+            client.close();
+        }
+        try {
+            CONNECTIONS.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            ReplyStream reply = new ReplyStream(new BufferedOutputStream(socket.getOutputStream()));
+            // The thread may have served another client before (when there are no virtual threads)
+            FILE_SYSTEM.setCurrentDirectory(FILE_SYSTEM.getRoot());
+            new RemoteShell(FILE_SYSTEM, socket, reply).start();
+        } catch (IOException e) {
+            // The client is gone, the next ones don't care
+        } finally {
+            CLIENTS.remove(client);
+        }
+    }
+
+    // One virtual thread per task when the JVM has them (Java 21 and up), one pooled thread per task otherwise.
+    // Looked up by reflection so the project still builds for Java 8
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Shell of a client: instead of a prompt, it ends the reply to the previous command
+    private static class RemoteShell extends Shell {
+
+        private final ReplyStream REPLY;
+
+        private RemoteShell(FileSystem fileSystem, Socket socket, ReplyStream reply) throws IOException {
+            super(fileSystem, socket.getInputStream(), new PrintStream(reply, false, "UTF-8"));
+            REPLY = reply;
+        }
+
+        @Override
+        protected void prompt() {
+            out.flush();
+            try {
+                REPLY.endReply();
+            } catch (IOException e) {
+                // The client is gone: the shell stops when it finds the end of the input
+            }
+        }
+    }
+
+    // Frames the replies: a '.' is added in front of every line that starts with one, and endReply() adds
+    // the line with a single '.'
+    private static class ReplyStream extends FilterOutputStream {
+
+        private boolean lineStart = true;
+
+        private ReplyStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart && b == '.') out.write('.');
+            out.write(b);
+            lineStart = b == '\n';
+        }
+
+        private void endReply() throws IOException {
+            if (!lineStart) out.write('\n');
+            out.write('.');
+            out.write('\n');
+            lineStart = true;
+            out.flush();
+        }
+    }
+}
@@ -3,26 +3,38 @@ package ext2;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public class Shell {
 
     private FileSystem fileSystem;
     private String currentPath = "/";
+    // Commands are read from 'in' and everything is printed to 'out'
+    private final InputStream in;
+    protected final PrintStream out;
     public static final String ANSI_BLUE = "\u001B[34m";
     public static final String ANSI_RESET = "\u001B[0m";
 
     public Shell(FileSystem fileSystem) {
+        this(fileSystem, System.in, System.out);
+    }
+
+    public Shell(FileSystem fileSystem, InputStream in, PrintStream out) {
         this.fileSystem = fileSystem;
+        this.in = in;
+        this.out = out;
     }
 
+    // Runs commands until 'exit' or the end of the input
     public void start() throws IOException {
-        Scanner scanner = new Scanner(System.in);
+        Scanner scanner = new Scanner(in);
         String input, command;
         mainloop:
         for (; ; ) {
-            System.out.printf("%n%s$ ", getCurrentPath());
+            prompt();
+            if (!scanner.hasNextLine()) break;
             input = scanner.nextLine();
             command = input.split(" ")[0];
             switch (command) {
@@ -33,12 +45,12 @@ public class Shell {
                         if (opts[1].equals("-l"))
                             lsExtended(fileSystem.getCurrentDirectory());
                         else
-                            System.out.printf("Unknown option '%s'%n", opts[1]);
+                            out.printf("Unknown option '%s'%n", opts[1]);
                     } else if (opts.length == 1) {
                         // ls
                         ls(fileSystem.getCurrentDirectory());
                     } else {
-                        System.out.println("Invalid 'ls' usage. Use 'ls' or 'ls -l'");
+                        out.println("Invalid 'ls' usage. Use 'ls' or 'ls -l'");
                     }
                     break;
                 }
@@ -48,7 +60,7 @@ public class Shell {
                     try {
                         cd(path);
                     } catch (IOException ioe) {
-                        System.out.println("Unexpected IO Exception ocurred");
+                        out.println("Unexpected IO Exception ocurred");
                     }
                     break;
                 }
@@ -57,35 +69,28 @@ public class Shell {
                         String opts[] = input.split(" > ");
                         String fileName = opts[1].trim();
                         if (Utils.containsIllegals(fileName)) {
-                            System.out.println("Illegal character found in the file name");
+                            out.println("Illegal character found in the file name");
                             break;
                         }
                         if (fileName.length() > 255) {
-                            System.out.println("Error: File name too long (a maximum of 255 characters is allowed");
+                            out.println("Error: File name too long (a maximum of 255 characters is allowed");
                             break;
                         }
-                        String content = "";
-                        String line;
-                        while (!(line = scanner.nextLine()).equals("eof")) {
-                            content += line + "\n";
-                        }
+                        InodeOutputStream file = null;
                         try {
-                            fileSystem.writeFile(fileName, content);
+                            file = fileSystem.createFile(fileName);
                         } catch (IllegalArgumentException iae) {
-                            System.out.println(iae.getMessage());
+                            out.println(iae.getMessage());
                         }
+                        writeLines(scanner, file);
                     } else if (input.contains(" >> ")) {
                         String opts[] = input.split(">>");
                         String fileName = opts[1].trim();
-                        String content = "";
-                        String line;
-                        while (!(line = scanner.nextLine()).equals("eof")) {
-                            content += line + "\n";
-                        }
-                        if (!fileSystem.append(fileName, content)) {
-                            System.out.println("The file was not found");
-                            break;
+                        InodeOutputStream file = fileSystem.appendFile(fileName);
+                        if (file == null) {
+                            out.println("The file was not found");
                         }
+                        writeLines(scanner, file);
                     } else {
                         String opts[] = input.split(" ", 2);
                         if (opts.length == 2) {
@@ -93,7 +98,7 @@ public class Shell {
                             String fileName = opts[1];
                             cat(fileName);
                         } else {
-                            System.out.println("Invalid 'cat' usage. Use 'cat <filename>' or 'cat > <filename>' or cat >> <filename>");
+                            out.println("Invalid 'cat' usage. Use 'cat <filename>' or 'cat > <filename>' or cat >> <filename>");
                         }
                     }
                     break;
@@ -102,13 +107,13 @@ public class Shell {
                     String opts[] = input.split(" ", 2);
                     String dirName = opts[1];
                     if (Utils.containsIllegals(dirName)) {
-                        System.out.println("Illegal character found in the file name");
+                        out.println("Illegal character found in the file name");
                         break;
                     }
                     try {
                         fileSystem.writeDirectory(dirName);
                     } catch (IllegalArgumentException iae) {
-                        System.out.println(iae.getMessage());
+                        out.println(iae.getMessage());
                     }
                     break;
                 }
@@ -119,18 +124,18 @@ public class Shell {
                     if (opts.length == 2) {
                         String name = opts[1];
                         if (name.equals(".") || name.equals("..")) {
-                            System.out.println("The system can't delete this directory");
+                            out.println("The system can't delete this directory");
                         } else {
                             try {
                                 if (!fileSystem.removeEntry(name)) {
-                                    System.out.printf("The system could not find the directory '%s'%n", name);
+                                    out.printf("The system could not find the directory '%s'%n", name);
                                 }
                             } catch (IllegalArgumentException iae) {
-                                System.out.println(iae.getMessage());
+                                out.println(iae.getMessage());
                             }
                         }
                     } else {
-                        System.out.println("Invalid 'rmdir' usage. Use 'rmdir <directory name>'");
+                        out.println("Invalid 'rmdir' usage. Use 'rmdir <directory name>'");
                     }
                     break;
                 }
@@ -139,40 +144,59 @@ public class Shell {
                     String opts[] = input.split(" ", 2);
                     if (opts.length == 2) {
                         String name = opts[1];
-                        if (!fileSystem.removeEntry(name)) {
-                            System.out.printf("The system could not find the file '%s'%n", name);
+                        try {
+                            if (!fileSystem.removeEntry(name)) {
+                                out.printf("The system could not find the file '%s'%n", name);
+                            }
+                        } catch (IllegalArgumentException iae) {
+                            out.println(iae.getMessage());
                         }
                     } else {
-                        System.out.println("Invalid 'rm' usage. Use 'rm <filename>'");
+                        out.println("Invalid 'rm' usage. Use 'rm <filename>'");
                     }
                     break;
                 }
 
                 case "ln": {
                     String params[] = input.split(" ", 3);
-                    if (params[1].equals("-s")) {
-                        // ln -s (simbolic link)
-                        String paths[] = input.split(" -s ")[1].split(" ", 2);
-                        if (paths.length == 2) {
-                            String source = paths[0];
-                            String dest = paths[1];
-                            fileSystem.writeLink(source, dest, DirectoryEntry.SYM_LINK);
+                    try {
+                        if (params[1].equals("-s")) {
+                            // ln -s (simbolic link)
+                            String paths[] = input.split(" -s ")[1].split(" ", 2);
+                            if (paths.length == 2) {
+                                String source = paths[0];
+                                String dest = paths[1];
+                                fileSystem.writeLink(source, dest, DirectoryEntry.SYM_LINK);
+                            } else {
+                                out.println("Invalid 'ln' usage. Use 'ln [-s] <source> <destination>' or 'ln <source> <destination>'");
+                            }
                         } else {
-                            System.out.println("Invalid 'ln' usage. Use 'ln [-s] <source> <destination>' or 'ln <source> <destination>'");
+                            // ln (hard link)
+                            String paths[] = input.split(" ", 2)[1].split(" ", 2);
+                            String source = paths[0];
+                            String des = paths[1];
+                            fileSystem.writeLink(source, des, DirectoryEntry.HARD_LINK);
                         }
-                    } else {
-                        // ln (hard link)
-                        String paths[] = input.split(" ", 2)[1].split(" ", 2);
-                        String source = paths[0];
-                        String des = paths[1];
-                        fileSystem.writeLink(source, des, DirectoryEntry.HARD_LINK);
+                    } catch (IllegalArgumentException iae) {
+                        out.println(iae.getMessage());
                     }
                     break;
                 }
+                case "sync": {
+                    fileSystem.sync();
+                    break;
+                }
+                case "stats": {
+                    out.println(fileSystem.getCache());
+                    out.println(fileSystem.getDirectoryCache());
+                    out.println(fileSystem.getPathCache());
+                    if (fileSystem.getJournal() != null) out.println(fileSystem.getJournal());
+                    break;
+                }
                 case "exit":
                     break mainloop;
                 default:
-                    System.out.printf("Unknown command '%s'%n", input.trim());
+                    out.printf("Unknown command '%s'%n", input.trim());
                     break;
             }
         }
@@ -183,9 +207,9 @@ public class Shell {
             DirectoryBlock dirBlock = directory.get(block);
             for (int entry = 0; entry < dirBlock.size(); entry++) {
                 DirectoryEntry dirEntry = dirBlock.get(entry);
-                if (dirEntry.getFilename().equals(".") || dirEntry.getFilename().equals("..")) continue;
+                if (dirEntry.isDotEntry()) continue;
 
-                System.out.printf((block == directory.size() - 1) && (entry == dirBlock.size() - 1)
+                out.printf((block == directory.size() - 1) && (entry == dirBlock.size() - 1)
                         ? (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? ANSI_BLUE + "%s%n" + ANSI_RESET : "%s%n"
                         : (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? ANSI_BLUE + "%s  " + ANSI_RESET : "%s  ", dirEntry.getFilename());
             }
@@ -197,21 +221,21 @@ public class Shell {
         Inode inode;
         String creationDate, accessDate, modifiedDate, fileName, type, size;
         if (directory.get(0).hasEntries())
-            System.out.format("%22s  %22s  %22s  %6s %8s %s%n", "Created", "Last access", "Modified", "Type", "Size", "Name");
+            out.format("%22s  %22s  %22s  %6s %8s %s%n", "Created", "Last access", "Modified", "Type", "Size", "Name");
 
         for (DirectoryBlock block : directory) {
             for (DirectoryEntry dirEntry : block) {
-                if (dirEntry.getFilename().equals(".") || dirEntry.getFilename().equals("..")) continue;
+                if (dirEntry.isDotEntry()) continue;
 
                 inode = inodeTable.get(dirEntry.getInode());
                 creationDate = Utils.epochTimeToDate(inode.getCreationTime());
                 accessDate = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Utils.epochTimeToDate(inode.getLastAccessTime());
                 modifiedDate = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Utils.epochTimeToDate(inode.getModifiedTime());
-                size = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Integer.toString(inode.getSize());
+                size = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "" : Long.toString(inode.getSize());
                 type = (dirEntry.getType() == DirectoryEntry.DIRECTORY) ? "<DIR>" : "";
                 fileName = dirEntry.getFilename();
 
-                System.out.format(
+                out.format(
                         (dirEntry.getType() == DirectoryEntry.DIRECTORY)
                                 ? "%22s  %22s  %22s  %6s %8s " + ANSI_BLUE + "%s" + ANSI_BLUE + "%n" + ANSI_RESET
                                 : "%22s  %22s  %22s  %6s %8s %s%n",
@@ -220,56 +244,70 @@ public class Shell {
         }
     }
 
+    // Printed before reading each command
+    protected void prompt() {
+        out.printf("%n%s$ ", getCurrentPath());
+    }
+
+    // Writes every line typed until 'eof' (or the end of the input) to the stream as it is read, then closes
+    // it. The lines are still consumed when 'file' is null (the file couldn't be opened)
+    private void writeLines(Scanner scanner, InodeOutputStream file) throws IOException {
+        String line;
+        while (scanner.hasNextLine() && !(line = scanner.nextLine()).equals("eof")) {
+            if (file == null) continue;
+            try {
+                file.write((line + "\n").getBytes());
+            } catch (IllegalArgumentException iae) {
+                out.println(iae.getMessage());
+                closeFile(file);
+                file = null;
+            }
+        }
+        if (file != null) closeFile(file);
+    }
+
+    // Closes a stream of writeLines(). A new file that can't be saved (another one took its name, the disk is
+    // full...) is dropped by close(), and only the message is printed
+    private void closeFile(InodeOutputStream file) throws IOException {
+        try {
+            file.close();
+        } catch (IllegalArgumentException iae) {
+            out.println(iae.getMessage());
+        }
+    }
+
     public void cat(String fileName) {
         try {
-            byte contentBytes[] = fileSystem.readFile(fileName);
-            if (contentBytes == null) {
-                System.out.println("The system could not find the file");
+            InodeInputStream in = fileSystem.openFile(fileName);
+            if (in == null) {
+                out.println("The system could not find the file");
                 return;
             }
-            String content = new String(contentBytes);
-            System.out.println(content);
+            // Print each block as soon as it is read
+            byte buffer[] = new byte[FileSystem.BLOCK_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.println();
+            in.close();
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
     }
 
     public void cd(String path) throws IOException {
-        // Used to restore the path in case this method throws an exception while building the path
-        String rollbackPath = getCurrentPath();
-        Directory initialDir = (path.startsWith("/")) ? fileSystem.getRoot() : fileSystem.getCurrentDirectory();
-        currentPath = (path.startsWith("/")) ? "/" : currentPath;
-
-        ArrayList<String> directories = Utils.splitPath(path);
-        for (String name : directories) {
-            DirectoryEntry entry = initialDir.findEntry(name);
-            if (entry != null) {
-                if (entry.getType() == DirectoryEntry.DIRECTORY) {
-                    Directory directory = new Directory();
-                    ArrayList<Integer> dirBlocks;
-                    int inodeNumber = entry.getInode();
-                    Inode inode = fileSystem.getInodeTable().get(inodeNumber);
-                    dirBlocks = inode.getDirectBlocks();
-
-                    // Go through each block and read their dir_entries
-                    for (int block : dirBlocks)
-                        directory.add(fileSystem.readDirectoryBlock(block));
+        Directory directory = fileSystem.resolveDirectory(path);
+        if (directory == null) {
+            out.println("The system could not find the path specified");
+            return;
+        }
 
-                    initialDir = directory;
-                    currentPath = FilenameUtils.concat(getCurrentPath(), name.concat("/"));
-                } else {
-                    // It is a file so it doesn't have directory entries
-                    currentPath = rollbackPath;
-                    System.out.println("The system could not find the path specified");
-                    return;
-                }
-            } else {
-                currentPath = rollbackPath;
-                System.out.println("The system could not find the path specified");
-                return;
-            }
+        currentPath = (path.startsWith("/")) ? "/" : currentPath;
+        for (String name : Utils.splitPath(path)) {
+            currentPath = FilenameUtils.concat(getCurrentPath(), name.concat("/"));
         }
-        fileSystem.setCurrentDirectory(initialDir);
+        fileSystem.setCurrentDirectory(directory);
     }
 
     public String getCurrentPath() {
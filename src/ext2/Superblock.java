@@ -0,0 +1,109 @@
+package ext2;
+
+import java.nio.ByteBuffer;
+
+// Block 0 of the volume: the layout of the block groups, the options chosen at format time, where the journal is and, for each
+// group, how many directories it holds (used to spread new directories). Everything else about a group
+// can be found in its bitmaps
+public class Superblock {
+
+    public static final int MAGIC = 0xEF53;
+    // Flags: new files map their blocks with extents
+    public static final int EXTENTS = 1;
+    // The directory count of each group takes 4 bytes after the 32 bytes of the header
+    public static final int MAX_GROUPS = (FileSystem.BLOCK_SIZE - 32) / 4;
+
+    // 4 bytes each
+    private final int blockCount;
+    private final int blocksPerGroup;
+    private final int inodesPerGroup;
+    private int flags;
+    // First block of the journal and its length in blocks (0 if the volume doesn't have one)
+    private int journalStart;
+    private int journalBlocks;
+    // 4 bytes per group
+    private final int directories[];
+
+    public Superblock(int blockCount, int blocksPerGroup, int inodesPerGroup, int groupCount) {
+        this.blockCount = blockCount;
+        this.blocksPerGroup = blocksPerGroup;
+        this.inodesPerGroup = inodesPerGroup;
+        directories = new int[groupCount];
+    }
+
+    // Reads the superblock at the start of the buffer, null if the volume wasn't formatted with block groups
+    public static Superblock decode(ByteBuffer buffer) {
+        int groupCount = buffer.getInt(16);
+        if (buffer.getInt(0) != MAGIC || groupCount < 1 || groupCount > MAX_GROUPS) return null;
+
+        Superblock superblock = new Superblock(buffer.getInt(4), buffer.getInt(8), buffer.getInt(12), groupCount);
+        superblock.flags = buffer.getInt(20);
+        superblock.journalStart = buffer.getInt(24);
+        superblock.journalBlocks = buffer.getInt(28);
+        for (int i = 0; i < groupCount; i++) {
+            superblock.directories[i] = buffer.getInt(32 + i * 4);
+        }
+        return superblock;
+    }
+
+    // Writes the superblock at the start of the buffer
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, blockCount);
+        buffer.putInt(8, blocksPerGroup);
+        buffer.putInt(12, inodesPerGroup);
+        buffer.putInt(16, directories.length);
+        buffer.putInt(20, flags);
+        buffer.putInt(24, journalStart);
+        buffer.putInt(28, journalBlocks);
+        for (int i = 0; i < directories.length; i++) {
+            buffer.putInt(32 + i * 4, directories[i]);
+        }
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlocksPerGroup() {
+        return blocksPerGroup;
+    }
+
+    public int getInodesPerGroup() {
+        return inodesPerGroup;
+    }
+
+    public int getGroupCount() {
+        return directories.length;
+    }
+
+    public boolean usesExtents() {
+        return (flags & EXTENTS) != 0;
+    }
+
+    public void setExtents(boolean extents) {
+        flags = extents ? flags | EXTENTS : flags & ~EXTENTS;
+    }
+
+    public int getJournalStart() {
+        return journalStart;
+    }
+
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    public void setJournal(int start, int blocks) {
+        journalStart = start;
+        journalBlocks = blocks;
+    }
+
+    // Returns how many directories have their inode in 'group'
+    public int getDirectories(int group) {
+        return directories[group];
+    }
+
+    public void setDirectories(int group, int count) {
+        directories[group] = count;
+    }
+}